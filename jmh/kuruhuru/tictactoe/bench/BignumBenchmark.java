@@ -0,0 +1,87 @@
+package kuruhuru.tictactoe.bench;
+
+import kuruhuru.tictactoe.bignum.Bignum;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of Bignum operations on numbers of 4 words.
+ * The shifts are parameterized by the shift, negative shifts are to the right.
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BignumBenchmark {
+
+    @State(Scope.Thread)
+    public static class Numbers {
+        final Bignum a = new Bignum(0x0123456789ABCDEFL, 0xFEDCBA9876543210L, 0x0F0F0F0F0F0F0F0FL, 0x1L);
+        final Bignum b = new Bignum(0xFFFF0000FFFF0000L, 0x00FF00FF00FF00FFL, 0x3333333333333333L, 0x1L);
+        final Bignum c = new Bignum(a);
+        final Bignum sparse = new Bignum(0x8000000000000101L, 0x10L, 0L, 0x1L); // 5 bits
+        final Bignum dense = new Bignum(-1L, -1L, -1L, 1L);                     // 193 bits
+    }
+
+    @State(Scope.Thread)
+    public static class Shift {
+        @Param({"1", "15", "64", "100", "-1", "-15", "-64", "-100"})
+        int shift;
+    }
+
+    @Benchmark
+    public Bignum bitwiseShift(Numbers numbers, Shift shift) {
+        return numbers.c.set(numbers.a).bitwiseShift(shift.shift);
+    }
+
+    @Benchmark
+    public Bignum bitwiseAND(Numbers numbers) {
+        return numbers.c.set(numbers.a).bitwiseAND(numbers.b);
+    }
+
+    @Benchmark
+    public Bignum bitwiseOR(Numbers numbers) {
+        return numbers.c.set(numbers.a).bitwiseOR(numbers.b);
+    }
+
+    @Benchmark
+    public Bignum bitwiseXOR(Numbers numbers) {
+        return numbers.c.set(numbers.a).bitwiseXOR(numbers.b);
+    }
+
+    @Benchmark
+    public int bitCount(Numbers numbers) {
+        return numbers.a.bitCount();
+    }
+
+    @Benchmark
+    public int nextSetBit(Numbers numbers) {
+        int sum = 0;
+        for (int i = numbers.sparse.nextSetBit(0); i >= 0; i = numbers.sparse.nextSetBit(i + 1)) sum += i;
+        return sum;
+    }
+
+    @Benchmark
+    public int getBitsSparse(Numbers numbers) {
+        return Bignum.getBits(numbers.sparse).size();
+    }
+
+    @Benchmark
+    public int getBitsDense(Numbers numbers) {
+        return Bignum.getBits(numbers.dense).size();
+    }
+}
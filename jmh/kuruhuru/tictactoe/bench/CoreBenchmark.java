@@ -0,0 +1,121 @@
+package kuruhuru.tictactoe.bench;
+
+import kuruhuru.tictactoe.ai.Game;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the game: result, move generation and sorting, making and taking back moves
+ * and setting a packed position, parameterized by board size, line length and board fill percentage.
+ * The line is not longer than the board. Run with -prof gc to see the allocations per operation.
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CoreBenchmark {
+
+    @Param({"3", "7", "10", "15", "19", "64"})
+    int size;
+
+    @Param({"5"})
+    int line;
+
+    @Param({"0", "25", "50"}) // percentage of the filled cells
+    int fill;
+
+    Game game;
+    Game copy;
+    Game.Player player;
+    int[] moves;
+    int count;  // number of the possible moves
+    long[] x;
+    long[] o;
+
+    @Setup
+    public void setup() {
+        game = randomPosition(size, size, Math.min(line, size), fill, new Random(size * 31 + fill));
+        copy = new Game(game.getGeometry());
+        player = game.getMoves() % 2 == 0 ? Game.Player.X : Game.Player.O;
+        moves = new int[game.getCells()];
+        count = game.findPossibleMoves(moves);
+        x = new long[game.getGeometry().getWords()];
+        o = new long[x.length];
+        game.getPosition(x, o, 0);
+    }
+
+    @Benchmark
+    public Game.Result result() {
+        return game.result().getResult();
+    }
+
+    @Benchmark
+    public int findPossibleMoves() {
+        return game.findPossibleMoves().size();
+    }
+
+    @Benchmark
+    public int findPossibleMovesInto() {
+        return game.findPossibleMoves(moves);
+    }
+
+    @Benchmark
+    public boolean sortPossibleMoves() {
+        return game.sortPossibleMoves(player).hasWining();
+    }
+
+    @Benchmark
+    public long makeUndoMove() {
+        long sum = 0;
+        for (int i = 0; i < count; i++) {
+            game.makeMove(moves[i], player);
+            sum += game.getHash();
+            game.undoMove(moves[i], player);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long setPosition() {
+        copy.setPosition(x, o, 0);
+        return copy.getHash();
+    }
+
+    /**
+     * @return a game with the given percentage of cells filled by random moves, which do not finish the game
+     */
+    static Game randomPosition(int width, int height, int line, int fill, Random random) {
+        Game game = new Game(width, height, line);
+        int target = game.getCells() * fill / 100;
+        int[] moves = new int[game.getCells()];
+        Game.Player player = Game.Player.X;
+        for (int attempt = 0; game.getMoves() < target && attempt < 100 * game.getCells(); attempt++) {
+            int count = game.findPossibleMoves(moves);
+            int move = moves[random.nextInt(count)];
+            game.makeMove(move, player);
+            if (game.result().getResult() != Game.Result.UNFINISHED) {
+                game.undoMove(move, player);
+            } else {
+                player = player.next();
+            }
+        }
+        return game;
+    }
+}
@@ -0,0 +1,42 @@
+package kuruhuru.tictactoe.bench;
+
+import kuruhuru.tictactoe.ai.Game;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the construction of a game, which takes the shared geometry of the board
+ * and allocates the state of the position.
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GameConstructionBenchmark {
+
+    @Param({"3", "7", "10", "15", "19", "64"})
+    int size;
+
+    @Param({"5"})
+    int line;
+
+    @Benchmark
+    public Game newGame() {
+        return new Game(size, size, Math.min(line, size));
+    }
+}
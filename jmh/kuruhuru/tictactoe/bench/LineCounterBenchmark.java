@@ -0,0 +1,75 @@
+package kuruhuru.tictactoe.bench;
+
+import kuruhuru.tictactoe.ai.Game;
+import kuruhuru.tictactoe.ai.LineCounter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the line counters, which Game.setPosition uses, parameterized by the implementation,
+ * board size, line length and board fill percentage. The forks add the incubator module,
+ * so the vector counter is measured if src-vector is on the class path; otherwise the setup fails
+ * rather than measuring the scalar counter twice.
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@State(Scope.Thread)
+public class LineCounterBenchmark {
+
+    @Param({"scalar", "vector"})
+    String counter;
+
+    @Param({"3", "7", "10", "15", "19", "64"})
+    int size;
+
+    @Param({"5"})
+    int line;
+
+    @Param({"0", "25", "50"}) // percentage of the filled cells
+    int fill;
+
+    LineCounter lineCounter;
+    long[] x;
+    long[] o;
+    byte[] winsX;
+    byte[] winsO;
+
+    @Setup
+    public void setup() {
+        Game game = CoreBenchmark.randomPosition(size, size, Math.min(line, size), fill,
+                new Random(size * 31 + fill));
+        boolean vector = counter.equals("vector");
+        lineCounter = LineCounter.create(game.getGeometry(), vector);
+        if (vector && lineCounter.getName().equals("scalar"))
+            throw new IllegalStateException("The vector counter is not available");
+        x = new long[game.getGeometry().getWords()];
+        o = new long[x.length];
+        game.getPosition(x, o, 0);
+        winsX = new byte[game.getGeometry().getWinsCount()];
+        winsO = new byte[winsX.length];
+    }
+
+    @Benchmark
+    public int count() {
+        lineCounter.count(x, o, 0, winsX, winsO);
+        return winsX[0] + winsO[winsO.length - 1];
+    }
+}
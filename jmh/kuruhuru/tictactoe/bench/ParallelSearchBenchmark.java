@@ -0,0 +1,78 @@
+package kuruhuru.tictactoe.bench;
+
+import kuruhuru.tictactoe.ai.Game;
+import kuruhuru.tictactoe.ai.ParallelSearch;
+import kuruhuru.tictactoe.ai.Search;
+import kuruhuru.tictactoe.ai.TranspositionTable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures speedup of the parallel search: time to reach a fixed depth from the same 15x15 position,
+ * parameterized by the number of threads. Every search starts with an empty transposition table,
+ * which is allocated, as well as the threads, before the measurement.
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class ParallelSearchBenchmark {
+
+    private static final int[][] OPENING = {{7, 7}, {7, 8}, {8, 7}, {6, 6}, {8, 8}, {6, 8}};
+
+    @Param({"1", "2", "4", "8", "16"})
+    int threads;
+
+    @Param({"4"})
+    int depth;
+
+    @Param({"64"})
+    int megabytes;
+
+    Game game;
+    Game.Player player;
+    ParallelSearch search;
+
+    @Setup(Level.Trial)
+    public void opening() {
+        game = new Game(15, 15, 5);
+        player = Game.Player.X;
+        for (int[] move : OPENING) {
+            game.makeMove(move[0] * game.getWidth() + move[1], player);
+            player = player.next();
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        search = new ParallelSearch(game, threads, new TranspositionTable(megabytes));
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        search.shutdown();
+    }
+
+    @Benchmark
+    public Search.SearchResult search() {
+        return search.search(player, Long.MAX_VALUE / 2_000_000L, depth);
+    }
+}
@@ -0,0 +1,119 @@
+package kuruhuru.tictactoe.ai;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The counter of the stones in the winnings over the Vector API: a vector holds the lanes
+ * of the neighbouring winnings, a block of them. The masks of the winnings are laid out as a structure
+ * of arrays: for every word of the board touched by a block, the bits of every winning of the block
+ * in that word. The word of the position is broadcast to all lanes and masked, so the position
+ * is not gathered. The neighbouring winnings lie close on the board, so a block touches a few words.
+ * The bits are counted by the SWAR bit count, the byte counts are summed over the words
+ * and then over the bytes of a lane: a winning has at most 64 cells, so a byte does not overflow.
+ * Compile and run with --add-modules jdk.incubator.vector, see {@link LineCounter}.
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+final class VectorLineCounter extends LineCounter {
+
+    private static final VectorSpecies<Long> LONGS = LongVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_64;
+
+    private static final long M1 = 0x5555555555555555L;
+    private static final long M2 = 0x3333333333333333L;
+    private static final long M4 = 0x0F0F0F0F0F0F0F0FL;
+
+    // The block b holds the winnings b * LONGS.length() ..., it touches the words first[b] .. first[b] + words[b] - 1.
+    // The bits of the lane l in the word first[b] + i are masks[start[b] + i * LONGS.length() + l]
+    private final int[] first;
+    private final int[] words;
+    private final int[] start;
+    private final long[] masks;
+
+    VectorLineCounter(Geometry geometry) {
+        super(geometry);
+        int[][] winCells = geometry.winCells;
+        int lanes = LONGS.length();
+        int blocks = (winCells.length + lanes - 1) / lanes;
+        this.first = new int[blocks];
+        this.words = new int[blocks];
+        this.start = new int[blocks];
+        int size = 0;
+        for (int b = 0; b < blocks; b++) {
+            int lo = Integer.MAX_VALUE;
+            int hi = 0;
+            for (int w = b * lanes; w < Math.min(winCells.length, (b + 1) * lanes); w++) {
+                lo = Math.min(lo, winCells[w][0] >>> 6);
+                hi = Math.max(hi, winCells[w][winCells[w].length - 1] >>> 6);
+            }
+            first[b] = lo;
+            words[b] = hi - lo + 1;
+            start[b] = size;
+            size += words[b] * lanes;
+        }
+        this.masks = new long[size];
+        for (int w = 0; w < winCells.length; w++) {
+            int b = w / lanes;
+            for (int cell : winCells[w]) {
+                masks[start[b] + ((cell >>> 6) - first[b]) * lanes + w % lanes] |= 1L << cell;
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "vector " + LONGS.vectorBitSize() + " bits";
+    }
+
+    @Override
+    public void count(long[] x, long[] o, int offset, byte[] winsX, byte[] winsO) {
+        int lanes = LONGS.length();
+        int wins = geometry.winCells.length;
+        for (int b = 0, w = 0; w < wins; b++, w += lanes) {
+            LongVector crosses = LongVector.zero(LONGS);
+            LongVector zeros = LongVector.zero(LONGS);
+            int word = offset + first[b];
+            for (int i = 0, j = start[b]; i < words[b]; i++, j += lanes) {
+                LongVector mask = LongVector.fromArray(LONGS, masks, j);
+                crosses = crosses.add(bytes(mask.and(x[word + i])));
+                zeros = zeros.add(bytes(mask.and(o[word + i])));
+            }
+            ByteVector sumX = sum(crosses);
+            ByteVector sumO = sum(zeros);
+            if (w + BYTES.length() <= wins) {
+                // the lanes past the block are written by the next block
+                sumX.intoArray(winsX, w);
+                sumO.intoArray(winsO, w);
+            } else {
+                // a masked store allocates in JDK 17, the last block is stored by lanes
+                for (int l = 0; w + l < wins; l++) {
+                    winsX[w + l] = sumX.lane(l);
+                    winsO[w + l] = sumO.lane(l);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the bit counts of the bytes of every lane
+     */
+    private static LongVector bytes(LongVector v) {
+        v = v.sub(v.lanewise(VectorOperators.LSHR, 1).and(M1));
+        v = v.and(M2).add(v.lanewise(VectorOperators.LSHR, 2).and(M2));
+        return v.add(v.lanewise(VectorOperators.LSHR, 4)).and(M4);
+    }
+
+    /**
+     * @return the sums of the bytes of every lane, a byte per lane
+     */
+    private static ByteVector sum(LongVector v) {
+        v = v.add(v.lanewise(VectorOperators.LSHR, 8));
+        v = v.add(v.lanewise(VectorOperators.LSHR, 16));
+        v = v.add(v.lanewise(VectorOperators.LSHR, 32)).and(0xFF);
+        return (ByteVector) v.convertShape(VectorOperators.L2B, BYTES, 0);
+    }
+}
@@ -0,0 +1,197 @@
+package kuruhuru.tictactoe.ai;
+
+import kuruhuru.tictactoe.bignum.Bitboard;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * The class evaluates many positions of one geometry in one call.
+ * Positions are given as columnar arrays of packed words: the crosses of position i
+ * are x[i * words] .. x[i * words + words - 1], the zeros are stored the same way in o.
+ * For every position the result, the number of wining moves and fours of both players
+ * and the best move of the side to move with its kind are computed.
+ * The batch is split into chunks evaluated in parallel, every thread of the pool evaluates its chunks
+ * on its own game, which is kept for the next batches.
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+public class BatchEvaluator {
+
+    // Kinds of the best move
+    public static final byte WIN = 0;   // the move wins
+    public static final byte BLOCK = 1; // the move blocks the opponent's wining move
+    public static final byte FORK = 2;  // the move makes a fork
+    public static final byte CHECK = 3; // the move makes a check
+    public static final byte GOOD = 4;  // the move extends a line, which can still win
+    public static final byte OTHER = 5; // any empty cell
+    public static final byte NONE = 6;  // the game is finished, there is no move
+
+    private static final int CHUNK = 1024; // positions per task
+
+    public static class Results {
+        final byte[] result;   // Game.Result ordinal
+        final byte[] kind;     // kind of the best move
+        final short[] move;    // cell of the best move, -1 if there is none
+        final short[] winsX;   // number of cells where the crosses win by one move
+        final short[] winsO;   // number of cells where the zeros win by one move
+        final short[] foursX;  // number of cells where the crosses make a four
+        final short[] foursO;  // number of cells where the zeros make a four
+        long nanos;
+
+        Results(int count) {
+            result = new byte[count];
+            kind = new byte[count];
+            move = new short[count];
+            winsX = new short[count];
+            winsO = new short[count];
+            foursX = new short[count];
+            foursO = new short[count];
+        }
+
+        public byte[] getResult() {
+            return result;
+        }
+
+        public byte[] getKind() {
+            return kind;
+        }
+
+        public short[] getMove() {
+            return move;
+        }
+
+        public short[] getWinsX() {
+            return winsX;
+        }
+
+        public short[] getWinsO() {
+            return winsO;
+        }
+
+        public short[] getFoursX() {
+            return foursX;
+        }
+
+        public short[] getFoursO() {
+            return foursO;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public long getPositionsPerSecond() {
+            return nanos == 0 ? 0 : result.length * 1_000_000_000L / nanos;
+        }
+    }
+
+    private final Geometry geometry;
+    private final int words;
+    private final ForkJoinPool pool;
+    // the worker does not refer to the evaluator, so the workers of a dropped evaluator can be collected
+    private final ThreadLocal<Worker> workers;
+
+    public BatchEvaluator(Geometry geometry) {
+        this(geometry, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param pool the pool evaluating chunks of the batch
+     */
+    public BatchEvaluator(Geometry geometry, ForkJoinPool pool) {
+        this.geometry = geometry;
+        this.words = geometry.getWords();
+        this.pool = pool;
+        this.workers = ThreadLocal.withInitial(() -> new Worker(geometry));
+    }
+
+    /**
+     * @return number of words per position in the input arrays
+     */
+    public int getWords() {
+        return words;
+    }
+
+    /**
+     * Evaluates the positions
+     * @param x packed crosses, words per position
+     * @param o packed zeros, words per position
+     * @param count number of positions
+     */
+    public Results evaluate(long[] x, long[] o, int count) {
+        if (x.length < (long) count * words || o.length < (long) count * words)
+            throw new IllegalArgumentException("Expected " + count * words + " words");
+
+        long start = System.nanoTime();
+        Results res = new Results(count);
+        int chunks = (count + CHUNK - 1) / CHUNK;
+        pool.submit(() -> IntStream.range(0, chunks).parallel().forEach(chunk ->
+                workers.get().evaluate(x, o, chunk * CHUNK, Math.min(count, (chunk + 1) * CHUNK), res)
+        )).join();
+        res.nanos = System.nanoTime() - start;
+        return res;
+    }
+
+    /**
+     * Evaluates ranges of positions on its own game
+     */
+    private static class Worker {
+        final int words;
+        final Game game;
+        final SortedMoves own;
+        final Bitboard threats;
+
+        Worker(Geometry geometry) {
+            this.words = geometry.getWords();
+            this.game = new Game(geometry);
+            this.own = new SortedMoves(geometry.cells);
+            this.threats = new Bitboard(geometry.cells);
+        }
+
+        void evaluate(long[] x, long[] o, int from, int to, Results res) {
+            for (int i = from; i < to; i++) {
+                game.setPosition(x, o, i * words);
+                Game.Result result = game.status();
+                res.result[i] = (byte) result.ordinal();
+                res.winsX[i] = (short) game.threats(Game.Player.X, 1, threats).bitCount();
+                res.winsO[i] = (short) game.threats(Game.Player.O, 1, threats).bitCount();
+                res.foursX[i] = (short) game.threats(Game.Player.X, 2, threats).bitCount();
+                res.foursO[i] = (short) game.threats(Game.Player.O, 2, threats).bitCount();
+
+                if (result != Game.Result.UNFINISHED) {
+                    res.kind[i] = NONE;
+                    res.move[i] = -1;
+                } else {
+                    // the crosses start, so they move when the numbers of stones are equal
+                    Game.Player player = (game.getMoves() % 2 == 0) ? Game.Player.X : Game.Player.O;
+                    classify(player, i, res);
+                }
+            }
+        }
+
+        private void classify(Game.Player player, int i, Results res) {
+            int opponentWins = (player == Game.Player.X) ? res.winsO[i] : res.winsX[i];
+            game.sortPossibleMoves(player, own);
+            if (own.hasWining()) {
+                set(res, i, WIN, own.wining);
+            } else if (opponentWins > 0) {
+                set(res, i, BLOCK, game.threats(player.next(), 1, threats));
+            } else if (own.hasFork()) {
+                set(res, i, FORK, own.fork);
+            } else if (!own.checks.isZero()) {
+                set(res, i, CHECK, own.checks);
+            } else if (!own.goodMoves.isZero()) {
+                set(res, i, GOOD, own.goodMoves);
+            } else {
+                set(res, i, OTHER, game.emptyFields(threats));
+            }
+        }
+
+        private void set(Results res, int i, byte kind, Bitboard moves) {
+            res.kind[i] = kind;
+            res.move[i] = (short) moves.lowestSetBit();
+        }
+    }
+}
@@ -1,8 +1,12 @@
 package kuruhuru.tictactoe.ai;
 
 import kuruhuru.tictactoe.bignum.Bignum;
+import kuruhuru.tictactoe.bignum.Bitboard;
+import kuruhuru.tictactoe.metrics.Metrics;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.SplittableRandom;
 
 /**
  * The class implements a game of tic-tac-toe,
@@ -26,6 +30,17 @@ public class Game {
     public static class GameResult {
         Result result = Result.UNFINISHED;
         Bignum win = null;
+
+        public Result getResult() {
+            return result;
+        }
+
+        /**
+         * @return the wining line, null if nobody has won
+         */
+        public Bignum getWin() {
+            return win;
+        }
     }
 
     public enum Player {
@@ -35,17 +50,61 @@ public class Game {
         }
     }
 
-    private int width;  // width of game board
-    private int height; // height of game board
-    private int line;   // length of wining sequence
-    private final byte bigSize;   // capacity of Bignum representing a board
-
-    private Bignum X; // Crosses on the board. Bit unit means a cross
-    private Bignum O; // Zeros on the board. Bit single means zero
-    private Bignum filled; // The filled board. A bit unit means a cross or a zero
-    private Bignum lastMove; // The last move
+    private static final int MAX_CELLS = Geometry.MAX_SIZE * Geometry.MAX_SIZE; // maximal number of cells
+    // Kinds of tracked winnings by the number of moves the player needs to fill them: 0, 1 and 2
+    private static final int FILLED = 0;
+    private static final int WIN = 1;
+    private static final int CHECK = 2;
+    private static final int THREAT_KINDS = 3;
+    // Random keys of a cross and a zero in every cell. The position hash is XOR of keys of the filled cells
+    private static final long[][] ZOBRIST = new long[2][MAX_CELLS];
+
+    static {
+        // The keys of the first 256 cells are generated first, so that the hashes of the boards
+        // up to 16x16 (and the opening books) do not depend on the maximal size
+        SplittableRandom random = new SplittableRandom(0x5EED_7AC7_0E5L);
+        for (int[] block : new int[][]{{0, 256}, {256, MAX_CELLS}})
+            for (long[] keys : ZOBRIST)
+                for (int i = block[0]; i < block[1]; i++)
+                    keys[i] = random.nextLong();
+    }
 
-    private Bignum[] wins; // All possible winnings. Bit units form a winning sequence.
+    private final Geometry geometry; // Shared description of the board
+    // Fields of the geometry, copied for convenience
+    private final int width;  // width of game board
+    private final int height; // height of game board
+    private final int line;   // length of wining sequence
+    private final int cells;      // number of cells on the board
+    private final byte bigSize;   // capacity of Bignum representing a board
+    private final Bitboard filled; // The filled board. A bit unit means a cross or a zero
+    private final int[][] winCells; // All possible winnings by their cells
+    private final int[][] cellWins; // Indexes of the winnings passing through every cell
+
+    private final Bitboard X; // Crosses on the board. Bit unit means a cross
+    private final Bitboard O; // Zeros on the board. Bit single means zero
+    private int moves; // Number of moves made
+    private long hash; // Zobrist hash of the position, updated by makeMove and undoMove
+
+    // Number of crosses and zeros in every winning, updated by makeMove and undoMove
+    private final byte[] winsX;
+    private final byte[] winsO;
+    // Number of winnings without the opponent's stones by number of the player's stones.
+    // patternsX[line] is the number of winnings filled by crosses
+    private final int[] patternsX;
+    private final int[] patternsO;
+    // The least number of the player's stones in a tracked winning, a winning without the opponent's stones
+    // is tracked if the player needs at most two moves to fill it. The winnings needing more moves
+    // are not tracked: nearly every move changes some of them, see scan
+    private final int tracked;
+    // Tracked winnings of both players, updated by makeMove and undoMove. A bit unit kind * winnings + w
+    // of threatLines[player] means that the player needs kind moves to fill the winning w
+    private final Bitboard[] threatLines;
+
+    // Preallocated bitboards for intermediate results, so that the hot paths do not allocate
+    private final Bitboard tmpMoves;
+    private final Bitboard tmpShift;
+    private final long[] tmpX; // words of the position counted by setPosition
+    private final long[] tmpO;
 
     /**
      * The game dimension is input: width, height
@@ -57,132 +116,116 @@ public class Game {
      * @param line length of wining sequence
      */
     public Game(int width, int height, int line) {
+        this(Geometry.of(width, height, line));
+    }
 
-        // width should be   0 < width <= 15
-        width %= 16;
-        if (width < 0) width = - width;
-        else if (width == 0) width = 3;
-
-        // height should be   0 < height <= 15
-        height %= 16;
-        if (height < 0) height = - height;
-        else if (height == 0) height = 3;
-
-        // creating empty board
-        this.width = width;
-        this.height = height;
-        this.line = line;
-
-        this.bigSize = (byte)((width*height)/64 + 1);
-        this.X = new Bignum(bigSize);
-        this.O = new Bignum(bigSize);
-        this.filled = new Bignum(bigSize);
-
-        // For convenience, the vertical should not be more than the horizontal
-        if (height > width) {
-            this.height = width;
-            this.width = height;
-        }
-
-        if (this.line <= 0) {
-            this.line = this.height;
-        } else if (this.line > this.height) {
-            this.line = this.height;
-        }
-
-        // Determine how many winning combinations can be
-        int possibleWins = this.height * (this.width - this.line + 1) +
-                this.width * (this.height - this.line + 1) +
-                2 * (this.height - this.line + 1) * (this.width - this.line + 1);
-        this.wins = new Bignum[possibleWins];
-
-        // Indicator of the fullness of the board
-        Bignum one = Bignum.newOne(bigSize);
-        for (int i=0; i < this.height * this.width; i++) {
-            this.filled.bitwiseOR(one);
-            one.bitwiseShift(1);
-        }
-
-        // Determine which series can win the game
-        int winIndex = 0;
-
-        // Horizontals
-        Bignum horizontal = new Bignum(bigSize);
-        for (int i=0; i < this.line; i++) {
-            one = Bignum.newOne(bigSize);
-            one.bitwiseShift(i);
-            horizontal.bitwiseOR(one);
-        }
-        for (int shift=0; shift < (this.width - this.line + 1); shift++) {
-            for (int i=0; i < this.height; i++) {
-                Bignum win = new Bignum(horizontal);
-                win.bitwiseShift(i * this.width + shift);
-                this.wins[winIndex] = win;
-                winIndex++;
-            }
-        }
+    /**
+     * Creates an empty board of the geometry
+     * @param geometry the board description, shared by all games of the configuration
+     */
+    public Game(Geometry geometry) {
+        this.geometry = geometry;
+        this.width = geometry.width;
+        this.height = geometry.height;
+        this.line = geometry.line;
+        this.cells = geometry.cells;
+        this.bigSize = (byte)(cells/64 + 1);
+        this.filled = geometry.filled;
+        this.winCells = geometry.winCells;
+        this.cellWins = geometry.cellWins;
+
+        this.X = new Bitboard(cells);
+        this.O = new Bitboard(cells);
+        this.winsX = new byte[winCells.length];
+        this.winsO = new byte[winCells.length];
+        this.patternsX = new int[line + 1];
+        this.patternsO = new int[line + 1];
+        this.patternsX[0] = winCells.length;
+        this.patternsO[0] = winCells.length;
+        this.tracked = Math.max(line - CHECK, 1);
+        this.threatLines = new Bitboard[]{new Bitboard(THREAT_KINDS * winCells.length),
+                new Bitboard(THREAT_KINDS * winCells.length)};
+        this.tmpMoves = new Bitboard(cells);
+        this.tmpShift = new Bitboard(cells);
+        this.tmpX = new long[geometry.getWords()];
+        this.tmpO = new long[geometry.getWords()];
+    }
 
-        // Verticals
-        Bignum vertical = new Bignum(bigSize);
-        for (int i=0; i < this.line; i++) {
-            one = Bignum.newOne(bigSize);
-            one.bitwiseShift(i * this.width);
-            vertical.bitwiseOR(one);
-        }
-        for (int shift=0; shift < (this.height - this.line + 1); shift++) {
-            for (int i=0; i < this.width; i++) {
-                Bignum win = new Bignum(vertical);
-                win.bitwiseShift(i + this.width * shift);
-                this.wins[winIndex] = win;
-                winIndex++;
-            }
-        }
+    /**
+     * Creates a copy of the game. The position is copied, the geometry is shared
+     * @param game the game to copy
+     */
+    public Game(Game game) {
+        this(game.geometry);
+        this.X.copy(game.X);
+        this.O.copy(game.O);
+        this.moves = game.moves;
+        this.hash = game.hash;
+        System.arraycopy(game.winsX, 0, this.winsX, 0, this.winsX.length);
+        System.arraycopy(game.winsO, 0, this.winsO, 0, this.winsO.length);
+        System.arraycopy(game.patternsX, 0, this.patternsX, 0, this.patternsX.length);
+        System.arraycopy(game.patternsO, 0, this.patternsO, 0, this.patternsO.length);
+        this.threatLines[0].copy(game.threatLines[0]);
+        this.threatLines[1].copy(game.threatLines[1]);
+    }
 
-        // Diagonals
-        Bignum diag1 = new Bignum(bigSize);
-        Bignum diag2 = new Bignum(bigSize);
-        for (int i=0; i < this.line; i++) {
-            one = Bignum.newOne(bigSize);
-            one.bitwiseShift(i * this.width + i);
-            diag1.bitwiseOR(one);
-            one = Bignum.newOne(bigSize);
-            one.bitwiseShift(this.width - 1);
-            one.bitwiseShift(i * this.width);
-            one.bitwiseShift(-i);
-            diag2.bitwiseOR(one);
-            //diag2 |= (uint64_t )1 << game.width - 1 << i * game.width >> i;
-        }
-
-        for (int j=0; j < (this.width - this.line + 1); j++) {
-            for (int i=0; i < (this.height - this.line + 1); i++) {
-                Bignum win = new Bignum(diag1);
-                win.bitwiseShift(j + i*this.width);
-                this.wins[winIndex] = win;
-                winIndex++;
-                win = new Bignum(diag2);
-                win.bitwiseShift(i * this.width);
-                win.bitwiseShift(-j);
-                this.wins[winIndex] = win;
-                winIndex++;
-            }
-        }
+    /**
+     * Clears the board
+     */
+    public void clear() {
+        this.X.clear();
+        this.O.clear();
+        this.moves = 0;
+        this.hash = 0;
+        Arrays.fill(this.winsX, (byte) 0);
+        Arrays.fill(this.winsO, (byte) 0);
+        Arrays.fill(this.patternsX, 0);
+        Arrays.fill(this.patternsO, 0);
+        this.patternsX[0] = winCells.length;
+        this.patternsO[0] = winCells.length;
+        for (Bitboard lines : this.threatLines) lines.clear();
+    }
+
+    public Geometry getGeometry() {
+        return geometry;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    /**
+     * @return number of cells on the board
+     */
+    public int getCells() {
+        return cells;
     }
 
+    /**
+     * @return number of moves made
+     */
+    public int getMoves() {
+        return moves;
+    }
 
     /**
      * Returns the cell corresponding to the (i, j) position on the board,
      * where -1 is the cross, 1 means zero, 0 is empty
      */
     public Field getField(int i, int j) {
-        Bignum one = Bignum.newOne(bigSize);
-        one.bitwiseShift(i * this.width + j);
-        Bignum field = new Bignum(one);
-        field.bitwiseAND(this.X);
-        if (!field.isZero()) {
+        int cell = i * this.width + j;
+        if (this.X.testBit(cell)) {
             return Field.X;
         }
-        one.bitwiseAND(this.O);
-        if (!one.isZero()) {
+        if (this.O.testBit(cell)) {
             return Field.O;
         }
         return Field.EMPTY;
@@ -216,12 +259,10 @@ public class Game {
     @SuppressWarnings("Duplicates")
     public void printBoard(Bignum fields) {
         System.out.println("fields = " + fields.toBinaryString());
+        Bitboard marked = new Bitboard(cells).copy(fields);
         for (int i=0; i<this.height; i++) {
             for (int j=0; j < this.width; j++) {
-                Bignum one = Bignum.newOne(bigSize);
-                one.bitwiseShift(i * this.width + j);
-                one.bitwiseAND(fields);
-                if (!one.isZero()) {
+                if (marked.testBit(i * this.width + j)) {
                     System.out.print("|*");
                 } else {
                     char field = '_';
@@ -244,8 +285,8 @@ public class Game {
      * Prints all wining lines
      */
     public void printWins() {
-        for (int i=0; i<wins.length; i++) {
-            printBoard(wins[i]);
+        for (int[] win : winCells) {
+            printBoard(toBignum(win));
             System.out.println();
         }
     }
@@ -254,61 +295,338 @@ public class Game {
      * Returns game result
      */
     public GameResult result() {
-        GameResult res = new GameResult();
-        for( Bignum w : wins){
-            Bignum win = new Bignum(w);
-            win.bitwiseAND(this.X);
-            if (win.equals(w)) {
-                res.result = Result.X;
-                res.win = win;
-                return res;
-            }
-            win = new Bignum(w);
-            win.bitwiseAND(this.O);
-            if (win.equals(w)) {
-                res.result = Result.O;
-                res.win = win;
-                return res;
-            }
-        }
-        // If board is full then draw
-        Bignum filled = new Bignum(this.X);
-        filled.bitwiseOR(this.O);
-        if (filled.equals(this.filled)) {
-            res.result = Result.DRAW;
+        if (!Metrics.ENABLED) return findResult();
+        long start = Metrics.RESULT.start();
+        try {
+            return findResult();
+        } finally {
+            Metrics.RESULT.stop(start);
         }
+    }
 
+    private GameResult findResult() {
+        GameResult res = new GameResult();
+        res.result = status();
+        if (res.result == Result.X || res.result == Result.O) {
+            // The filled winnings are tracked as the threats of the kind FILLED
+            int player = (res.result == Result.X) ? 0 : 1;
+            int w = this.threatLines[player].nextSetBit(FILLED * this.winCells.length);
+            res.win = toBignum(this.winCells[w]);
+        }
         return res;
     }
 
+    /**
+     * Returns game result without the wining line.
+     * The result is kept up to date by makeMove and undoMove, so the call is O(1)
+     */
+    Result status() {
+        if (this.patternsX[this.line] > 0) return Result.X;
+        if (this.patternsO[this.line] > 0) return Result.O;
+        // If board is full then draw
+        return this.moves == this.cells ? Result.DRAW : Result.UNFINISHED;
+    }
+
     /**
      * Make move on the board if it possible.
      * If not - returns false
      */
     public boolean makeMove(Bignum move, Player player) {
-        Bignum field = new Bignum(this.X);
-        field.bitwiseOR(this.O);
-        field.bitwiseAND(move);
-        if (!field.isZero())//illegal move, field is not empty
-            return false;
+        return makeMove(move.lowestSetBit(), player);
+    }
+
+    /**
+     * Make move to the cell with the index if it possible.
+     * If not - returns false
+     */
+    public boolean makeMove(int cell, Player player) {
+        if (!Metrics.ENABLED) return place(cell, player);
+        long start = Metrics.MAKE_MOVE.start();
+        try {
+            return place(cell, player);
+        } finally {
+            Metrics.MAKE_MOVE.stop(start);
+        }
+    }
+
+    private boolean place(int cell, Player player) {
+        if (cell < 0 || cell >= this.cells || this.X.testBit(cell) || this.O.testBit(cell))
+            return false; //illegal move, field is not empty
 
         if (player == Player.X) {
-            this.X.bitwiseOR(move);
+            this.X.setBit(cell);
+            for (int w : this.cellWins[cell]) {
+                unlink(w);
+                this.winsX[w]++;
+                link(w);
+            }
         } else {
-            this.O.bitwiseOR(move);
+            this.O.setBit(cell);
+            for (int w : this.cellWins[cell]) {
+                unlink(w);
+                this.winsO[w]++;
+                link(w);
+            }
         }
+        this.moves++;
+        this.hash ^= ZOBRIST[player.ordinal()][cell];
         return true;
     }
 
     /**
-     * Undo move on the board if it possible.
-     * If not - returns false
+     * Undo move on the board
      */
     public void undoMove(Bignum move, Player player) {
-        if (player == Player.X)
-            this.X.bitwiseXOR(move);
-        else
-            this.O.bitwiseXOR(move);
+        undoMove(move.lowestSetBit(), player);
+    }
+
+    /**
+     * Undo move to the cell with the index
+     */
+    public void undoMove(int cell, Player player) {
+        if (!Metrics.ENABLED) {
+            remove(cell, player);
+            return;
+        }
+        long start = Metrics.UNDO_MOVE.start();
+        try {
+            remove(cell, player);
+        } finally {
+            Metrics.UNDO_MOVE.stop(start);
+        }
+    }
+
+    private void remove(int cell, Player player) {
+        if (player == Player.X) {
+            this.X.clearBit(cell);
+            for (int w : this.cellWins[cell]) {
+                unlink(w);
+                this.winsX[w]--;
+                link(w);
+            }
+        } else {
+            this.O.clearBit(cell);
+            for (int w : this.cellWins[cell]) {
+                unlink(w);
+                this.winsO[w]--;
+                link(w);
+            }
+        }
+        this.moves--;
+        this.hash ^= ZOBRIST[player.ordinal()][cell];
+    }
+
+    /**
+     * Adds the winning to the threats of the player
+     * @param player 0 for the crosses, 1 for the zeros
+     * @param stones the player's stones in the winning, not less than tracked
+     */
+    private void track(int player, int w, int stones) {
+        this.threatLines[player].setBit((this.line - stones) * this.winCells.length + w);
+    }
+
+    /**
+     * Removes the winning from the threats of the player
+     */
+    private void untrack(int player, int w, int stones) {
+        this.threatLines[player].clearBit((this.line - stones) * this.winCells.length + w);
+    }
+
+    /**
+     * Removes the winning from the pattern counts
+     */
+    private void unlink(int w) {
+        if (this.winsO[w] == 0) {
+            this.patternsX[this.winsX[w]]--;
+            if (this.winsX[w] >= this.tracked) untrack(0, w, this.winsX[w]);
+        }
+        if (this.winsX[w] == 0) {
+            this.patternsO[this.winsO[w]]--;
+            if (this.winsO[w] >= this.tracked) untrack(1, w, this.winsO[w]);
+        }
+    }
+
+    /**
+     * Adds the winning to the pattern counts
+     */
+    private void link(int w) {
+        if (this.winsO[w] == 0) {
+            this.patternsX[this.winsX[w]]++;
+            if (this.winsX[w] >= this.tracked) track(0, w, this.winsX[w]);
+        }
+        if (this.winsX[w] == 0) {
+            this.patternsO[this.winsO[w]]++;
+            if (this.winsO[w] >= this.tracked) track(1, w, this.winsO[w]);
+        }
+    }
+
+    /**
+     * Returns the number of winnings, where the player has the given number of stones
+     * and the opponent has none. For example, patterns(player, line - 1) is the number of fours
+     */
+    public int patterns(Player player, int stones) {
+        return (player == Player.X) ? this.patternsX[stones] : this.patternsO[stones];
+    }
+
+    /**
+     * Static evaluation of the position for the player.
+     * Every winning without the opponent's stones scores by the number of the player's stones.
+     * An open three lies in more winnings than a closed one, so open patterns score higher.
+     * The evaluation is kept up to date by makeMove and undoMove, so the call is O(line)
+     * @return the player's score minus the opponent's score
+     */
+    public int evaluate(Player player) {
+        int[] weights = this.geometry.weights;
+        int score = 0;
+        for (int k=1; k < this.line; k++) {
+            score += weights[k] * (this.patternsX[k] - this.patternsO[k]);
+        }
+        return (player == Player.X) ? score : -score;
+    }
+
+    /**
+     * Sets the position from packed words of the crosses and zeros,
+     * as they are stored by {@link Bitboard#copyTo(long[], int)}
+     * @param x words of the crosses
+     * @param o words of the zeros
+     * @param offset index of the first word of the position
+     */
+    public void setPosition(long[] x, long[] o, int offset) {
+        setPosition(x, offset, o, offset);
+    }
+
+    /**
+     * Sets the position like setPosition, the words of the crosses and zeros start at their own indexes
+     */
+    void setPosition(long[] x, int xOffset, long[] o, int oOffset) {
+        this.X.copy(x, xOffset).and(this.X, this.filled);
+        this.O.copy(o, oOffset).and(this.O, this.filled).andNot(this.O, this.X);
+        this.moves = this.X.bitCount() + this.O.bitCount();
+
+        this.hash = 0;
+        for (int cell = this.X.nextSetBit(0); cell >= 0; cell = this.X.nextSetBit(cell + 1))
+            this.hash ^= ZOBRIST[Player.X.ordinal()][cell];
+        for (int cell = this.O.nextSetBit(0); cell >= 0; cell = this.O.nextSetBit(cell + 1))
+            this.hash ^= ZOBRIST[Player.O.ordinal()][cell];
+
+        Arrays.fill(this.patternsX, 0);
+        Arrays.fill(this.patternsO, 0);
+        for (Bitboard lines : this.threatLines) lines.clear();
+        this.X.copyTo(this.tmpX, 0);
+        this.O.copyTo(this.tmpO, 0);
+        this.geometry.counter.count(this.tmpX, this.tmpO, 0, this.winsX, this.winsO);
+        for (int i=0; i < this.winCells.length; i++) {
+            link(i);
+        }
+    }
+
+    /**
+     * Sets the position like setPosition, but takes back and makes only the stones, which differ
+     * from the current position, if that is cheaper than counting all winnings anew.
+     * So a position of the same game, e.g. from the undo history, is set in O(words) and a few moves.
+     * A cell must not be taken by both players
+     * @param x words of the crosses
+     * @param o words of the zeros
+     * @param offset index of the first word of the position
+     */
+    public void restorePosition(long[] x, long[] o, int offset) {
+        restorePosition(x, offset, o, offset);
+    }
+
+    /**
+     * Sets the position like restorePosition, the words of the crosses and zeros start at their own indexes
+     */
+    void restorePosition(long[] x, int xOffset, long[] o, int oOffset) {
+        int words = this.filled.getWords();
+        int changes = 0;
+        for (int i = 0; i < words; i++) {
+            long mask = this.filled.getWord(i);
+            changes += Long.bitCount((this.X.getWord(i) ^ x[xOffset + i]) & mask)
+                    + Long.bitCount((this.O.getWord(i) ^ o[oOffset + i]) & mask);
+        }
+        // a move updates at most 4 * line winnings, setPosition counts the stones of all of them
+        if (changes * 4 * this.line > this.winCells.length) {
+            setPosition(x, xOffset, o, oOffset);
+            return;
+        }
+        for (int i = 0; i < words; i++) {
+            long mask = this.filled.getWord(i);
+            for (long bits = this.X.getWord(i) & ~x[xOffset + i] & mask; bits != 0; bits &= bits - 1)
+                remove((i << 6) + Long.numberOfTrailingZeros(bits), Player.X);
+            for (long bits = this.O.getWord(i) & ~o[oOffset + i] & mask; bits != 0; bits &= bits - 1)
+                remove((i << 6) + Long.numberOfTrailingZeros(bits), Player.O);
+        }
+        for (int i = 0; i < words; i++) {
+            long mask = this.filled.getWord(i);
+            for (long bits = x[xOffset + i] & ~this.X.getWord(i) & mask; bits != 0; bits &= bits - 1)
+                place((i << 6) + Long.numberOfTrailingZeros(bits), Player.X);
+            for (long bits = o[oOffset + i] & ~this.O.getWord(i) & mask; bits != 0; bits &= bits - 1)
+                place((i << 6) + Long.numberOfTrailingZeros(bits), Player.O);
+        }
+    }
+
+    /**
+     * Writes packed words of the crosses and zeros, so that the position can be restored by setPosition
+     * @param x words of the crosses
+     * @param o words of the zeros
+     * @param offset index of the first word of the position
+     */
+    public void getPosition(long[] x, long[] o, int offset) {
+        getPosition(x, offset, o, offset);
+    }
+
+    /**
+     * Writes the position like getPosition, the words of the crosses and zeros start at their own indexes
+     */
+    void getPosition(long[] x, int xOffset, long[] o, int oOffset) {
+        this.X.copyTo(x, xOffset);
+        this.O.copyTo(o, oOffset);
+    }
+
+    /**
+     * @return Zobrist hash of the position
+     */
+    public long getHash() {
+        return hash;
+    }
+
+    /**
+     * @return Zobrist key of the player's stone on the cell
+     */
+    static long zobrist(Player player, int cell) {
+        return ZOBRIST[player.ordinal()][cell];
+    }
+
+    /**
+     * Returns the Zobrist hash of the position transformed by the symmetry of the board.
+     * Symmetric positions have the same minimal hash over all symmetries
+     * @param symmetry index of the symmetry, 0 is identity
+     */
+    public long symmetricHash(int symmetry) {
+        if (symmetry == 0) return this.hash;
+        int[] image = this.geometry.symmetries[symmetry];
+        long res = 0;
+        for (int cell = this.X.nextSetBit(0); cell >= 0; cell = this.X.nextSetBit(cell + 1))
+            res ^= ZOBRIST[Player.X.ordinal()][image[cell]];
+        for (int cell = this.O.nextSetBit(0); cell >= 0; cell = this.O.nextSetBit(cell + 1))
+            res ^= ZOBRIST[Player.O.ordinal()][image[cell]];
+        return res;
+    }
+
+    /**
+     * @return Bignum of the cells
+     */
+    private Bignum toBignum(int[] cells) {
+        Bignum res = new Bignum(bigSize);
+        for (int cell : cells) res.setBit(cell);
+        return res;
+    }
+
+    /**
+     * @return the move to the cell with the index
+     */
+    Bignum cell(int index) {
+        return new Bignum(bigSize).setBit(index);
     }
 
     /**
@@ -316,8 +634,121 @@ public class Game {
      * @return all possible moves as a list
      */
     public ArrayList<Bignum> findPossibleMoves() {
-        Bignum empty = new Bignum(this.X).bitwiseOR(this.O).bitwiseXOR(this.filled);
-        return Bignum.getBits(empty);
+        if (!Metrics.ENABLED) return possibleMoves();
+        long start = Metrics.FIND_POSSIBLE_MOVES.start();
+        try {
+            return possibleMoves();
+        } finally {
+            Metrics.FIND_POSSIBLE_MOVES.stop(start);
+        }
+    }
+
+    private ArrayList<Bignum> possibleMoves() {
+        ArrayList<Bignum> res = new ArrayList<>(this.cells - this.moves);
+        Bitboard empty = emptyFields(new Bitboard(cells));
+        for (int cell = empty.nextSetBit(0); cell >= 0; cell = empty.nextSetBit(cell + 1)) {
+            res.add(cell(cell));
+        }
+        return res;
+    }
+
+    /**
+     * Writes indexes of all possible moves into the array
+     * @return number of possible moves
+     */
+    public int findPossibleMoves(int[] moves) {
+        if (!Metrics.ENABLED) return emptyFields(tmpMoves).toIndexes(moves);
+        long start = Metrics.FIND_POSSIBLE_MOVES.start();
+        try {
+            return emptyFields(tmpMoves).toIndexes(moves);
+        } finally {
+            Metrics.FIND_POSSIBLE_MOVES.stop(start);
+        }
+    }
+
+    /**
+     * Writes indexes of the empty cells within the distance from the stones into the array.
+     * On the empty board the only candidate is the center
+     * @param distance maximal distance from a stone in rows, columns or diagonals
+     * @return number of candidate moves
+     */
+    public int findCandidateMoves(int distance, int[] moves) {
+        return candidates(distance, tmpMoves).toIndexes(moves);
+    }
+
+    /**
+     * Writes into dst the empty cells within the distance from the stones.
+     * The stones are dilated by shifts: by the width for the rows above and below,
+     * by one for the columns, masking the bits wrapped to the neighbouring row
+     * @return dst
+     */
+    Bitboard candidates(int distance, Bitboard dst) {
+        dst.or(this.X, this.O);
+        if (dst.isZero()) {
+            return dst.setBit((this.height / 2) * this.width + this.width / 2);
+        }
+        Bitboard shifted = this.tmpShift;
+        for (int d=0; d < distance; d++) {
+            shifted.shiftLeft(dst, this.width).and(shifted, this.filled);
+            dst.or(dst, shifted);
+            shifted.shiftRight(dst, this.width);
+            dst.or(dst, shifted);
+            shifted.shiftLeft(dst, 1).and(shifted, this.geometry.notFirstColumn);
+            dst.or(dst, shifted);
+            shifted.shiftRight(dst, 1).and(shifted, this.geometry.notLastColumn);
+            dst.or(dst, shifted);
+        }
+        return dst.andNot(dst, this.X).andNot(dst, this.O);
+    }
+
+    /**
+     * @return empty fields of the board written into dst. Bit unit means an empty field
+     */
+    Bitboard emptyFields(Bitboard dst) {
+        return dst.or(this.X, this.O).andNot(this.filled, dst);
+    }
+
+    /**
+     * Writes into dst the empty cells of the winnings, where the player needs exactly
+     * the given number of moves and the opponent has no moves.
+     * For example, needed = 1 gives the wining moves, needed = 2 gives the moves making a four.
+     * Up to two needed moves the matching winnings are kept by makeMove and undoMove,
+     * otherwise they are found through the player's stones or, if the winnings are empty, among all winnings.
+     * The cells of the matching winnings are set one by one, so the cost does not grow with the board.
+     * The kept winnings replace the bit-parallel search of the wining moves by shifts of the stones
+     * in the four directions: it needs 2 * (line - 1) shifts of the board per direction and was 4 to 19 times
+     * slower (1.2 us against 0.06 us on 15x15, 3.9 - 5.4 us against 0.6 - 1.3 us on 64x64)
+     * @return dst
+     */
+    Bitboard threats(Player player, int needed, Bitboard dst) {
+        dst.clear();
+        if (needed >= WIN && needed <= CHECK && needed < this.line) {
+            setCells(player, needed, dst);
+            return dst.andNot(dst, this.X).andNot(dst, this.O);
+        }
+        if (needed < this.line) return scan(player, needed, needed, dst);
+        byte[] playerCounts = (player == Player.X) ? this.winsX : this.winsO;
+        byte[] opponentCounts = (player == Player.X) ? this.winsO : this.winsX;
+        for (int i=0; i < this.winCells.length; i++) {
+            if (playerCounts[i] == this.line - needed && opponentCounts[i] == 0)
+                for (int cell : this.winCells[i]) dst.setBit(cell);
+        }
+        return dst.andNot(dst, this.X).andNot(dst, this.O);
+    }
+
+    /**
+     * Same as threats(player, needed, dst), but only the winnings passing through the cell are examined
+     * @return dst
+     */
+    Bitboard threats(int cell, Player player, int needed, Bitboard dst) {
+        byte[] playerCounts = (player == Player.X) ? this.winsX : this.winsO;
+        byte[] opponentCounts = (player == Player.X) ? this.winsO : this.winsX;
+        dst.clear();
+        for (int w : this.cellWins[cell]) {
+            if (playerCounts[w] == this.line - needed && opponentCounts[w] == 0)
+                for (int c : this.winCells[w]) dst.setBit(c);
+        }
+        return dst.andNot(dst, this.X).andNot(dst, this.O);
     }
 
     /**
@@ -325,58 +756,86 @@ public class Game {
      * @return sorted moves
      */
     public SortedMoves sortPossibleMoves(Player player) {
-        SortedMoves res = new SortedMoves();
+        return sortPossibleMoves(player, new SortedMoves(cells));
+    }
 
-        Bignum player_boardl;
-        Bignum playerBoard;
-        Bignum opponentBoard;
+    /**
+     * Sorts possible moves of the player, according to their strength.
+     * The result is written into res, so that it can be reused.
+     * The wining moves and the checks of both players are kept by makeMove and undoMove,
+     * the other moves are found through the player's stones, so the call does not examine all winnings
+     * @return sorted moves
+     */
+    SortedMoves sortPossibleMoves(Player player, SortedMoves res) {
+        if (!Metrics.ENABLED) return sort(player, res);
+        long start = Metrics.SORT_POSSIBLE_MOVES.start();
+        try {
+            return sort(player, res);
+        } finally {
+            Metrics.SORT_POSSIBLE_MOVES.stop(start);
+        }
+    }
 
+    private SortedMoves sort(Player player, SortedMoves res) {
+        res.clear();
+        if (setCells(player, WIN, res.wining) > 0) {  // wining move found
+            res.wining.andNot(res.wining, this.X).andNot(res.wining, this.O);
+            return res;
+        }
 
-        if (player == Player.X) {
-            playerBoard = new Bignum(this.X);
-            opponentBoard = new Bignum(this.O);
-        } else {
-            playerBoard = new Bignum(this.O);
-            opponentBoard = new Bignum(this.X);
-        }
-
-        for (Bignum w: this.wins) {
-            Bignum win = new Bignum(w);
-            Bignum potentialMoves = win.bitwiseAND(playerBoard);
-            if(!potentialMoves.isZero()) {
-                potentialMoves.bitwiseXOR(win); // The moves required to fill a wining row
-                if (new Bignum(potentialMoves).bitwiseAND(opponentBoard).isZero()) {  // All fields are free
-                    int count = 0;
-                    Bignum pmove = new Bignum(potentialMoves);
-                    while (!potentialMoves.isZero()) {
-                        potentialMoves.bitwiseAND(new Bignum(potentialMoves).minusOne());
-                        count += 1;
-                    }
-                    if (count == 1) {  // wining move found
-                        res.wining = pmove;
-                        return res;
-                    } else if (count == 2) { // Check
-                        Bignum potentialFork = new Bignum(pmove).bitwiseAND(res.checks);
-                        if (!potentialFork.isZero()) {
-                            int number = 0;
-                            Bignum pfork = new Bignum(potentialFork);
-                            while (!pfork.isZero()) {
-                                pfork.bitwiseAND(new Bignum(pfork).minusOne());
-                                number += 1;
-                            }
-                            if (number == 1) {  // Exactly fork
-                                res.fork = potentialFork;
-                            }
-                            res.potentialForks.bitwiseOR(potentialFork);
-                        } else { // Check
-                            res.checks.bitwiseOR(pmove);
-                        }
-                    } else {
-                        res.goodMoves.bitwiseOR(pmove);
-                    }
-                }
+        // A cell of two checks is a fork
+        Bitboard lines = this.threatLines[player.ordinal()];
+        int first = CHECK * this.winCells.length;
+        int end = first + this.winCells.length;
+        for (int i = lines.nextSetBit(first); i >= 0 && i < end; i = lines.nextSetBit(i + 1)) {
+            for (int cell : this.winCells[i - first]) {
+                if (res.checks.testBit(cell)) res.fork.setBit(cell);
+                else res.checks.setBit(cell);
             }
         }
+        Bitboard empty = emptyFields(this.tmpMoves);
+        res.fork.and(res.fork, empty);
+        res.checks.and(res.checks, empty);
+        if (!res.checks.isZero()) { // A check making a three is a potential fork
+            Bitboard threes = scan(player, 3, 3, this.tmpShift.clear());
+            res.potentialForks.and(res.checks, threes);
+        }
+        scan(player, 3, this.line - 1, res.goodMoves);
         return res;
     }
+
+    /**
+     * Sets in dst the empty cells of the winnings with the player's stones and without the opponent's ones,
+     * where the player needs from min to max moves. The winnings are found through the player's stones,
+     * so the cost does not grow with the board
+     * @return dst
+     */
+    private Bitboard scan(Player player, int min, int max, Bitboard dst) {
+        Bitboard stones = (player == Player.X) ? this.X : this.O;
+        byte[] playerCounts = (player == Player.X) ? this.winsX : this.winsO;
+        byte[] opponentCounts = (player == Player.X) ? this.winsO : this.winsX;
+        for (int stone = stones.nextSetBit(0); stone >= 0; stone = stones.nextSetBit(stone + 1)) {
+            for (int w : this.cellWins[stone]) {
+                int needed = this.line - playerCounts[w];
+                if (opponentCounts[w] == 0 && needed >= min && needed <= max)
+                    for (int cell : this.winCells[w]) dst.setBit(cell);
+            }
+        }
+        return dst.andNot(dst, this.X).andNot(dst, this.O);
+    }
+
+    /**
+     * Sets in dst the cells of the winnings of the kind of the player's threats
+     * @return number of the winnings
+     */
+    private int setCells(Player player, int kind, Bitboard dst) {
+        Bitboard lines = this.threatLines[player.ordinal()];
+        int first = kind * this.winCells.length;
+        int end = first + this.winCells.length;
+        int count = 0;
+        for (int i = lines.nextSetBit(first); i >= 0 && i < end; i = lines.nextSetBit(i + 1), count++) {
+            for (int cell : this.winCells[i - first]) dst.setBit(cell);
+        }
+        return count;
+    }
 }
@@ -0,0 +1,226 @@
+package kuruhuru.tictactoe.ai;
+
+import kuruhuru.tictactoe.bignum.Bitboard;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The class describes the board of a game configuration (width, height, line):
+ * the cells of all wining lines, the index of lines passing through every cell, the full board mask
+ * and the column masks, by which the game dilates the stones to the neighbouring cells.
+ * The lines are kept as cell indexes rather than bitboards, so their memory does not grow
+ * with the number of words of the board.
+ * The geometry is computed once per configuration, cached and shared by all games,
+ * so creating a game costs only its player bitboards and counters.
+ * The geometry is immutable: the bitboards it returns must not be modified.
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+public final class Geometry {
+
+    public static final int MAX_SIZE = 64; // maximal width and height of the board
+
+    private static final ConcurrentHashMap<Integer, Geometry> CACHE = new ConcurrentHashMap<>();
+
+    final int width;   // width of game board, not less than height
+    final int height;  // height of game board
+    final int line;    // length of wining sequence
+    final int cells;   // number of cells on the board
+
+    final Bitboard filled;       // The filled board. A bit unit means a cell of the board
+    final int[][] winCells;      // Cells of every winning
+    final int[][] cellWins;      // Indexes of the winnings passing through every cell
+    final Bitboard notFirstColumn; // The board without the first column
+    final Bitboard notLastColumn;  // The board without the last column
+    final int[] weights;         // Scores of a winning by number of stones in it, see Game.evaluate
+    final int[][] symmetries;    // Images of every cell under the symmetries of the board, the first is identity
+    final int[][] inverses;      // Inverse symmetries
+    final LineCounter counter;   // Counter of the stones in the winnings, selected at startup
+
+    /**
+     * Returns the geometry of the configuration.
+     * The width and height should be 0 < width, height <= MAX_SIZE: a negative size is taken by absolute value,
+     * zero is replaced by 3, a larger size is reduced to MAX_SIZE; the vertical is made not more than
+     * the horizontal; the line should be 0 < line <= height, otherwise it is equal to the height
+     * @param width width of game board
+     * @param height height of game board
+     * @param line length of wining sequence
+     */
+    public static Geometry of(int width, int height, int line) {
+        width = size(width);
+        height = size(height);
+
+        // For convenience, the vertical should not be more than the horizontal
+        if (height > width) {
+            int tmp = height;
+            height = width;
+            width = tmp;
+        }
+
+        if (line <= 0 || line > height) {
+            line = height;
+        }
+
+        int key = (width << 16) | (height << 8) | line;
+        Geometry res = CACHE.get(key);
+        if (res == null) {
+            res = CACHE.computeIfAbsent(key, k -> new Geometry(k >>> 16, (k >>> 8) & 0xFF, k & 0xFF));
+        }
+        return res;
+    }
+
+    /**
+     * @return the size brought into 0 < size <= MAX_SIZE
+     */
+    private static int size(int size) {
+        if (size < 0) size = - size;
+        if (size == 0) return 3;
+        return (size > MAX_SIZE || size < 0) ? MAX_SIZE : size;
+    }
+
+    private Geometry(int width, int height, int line) {
+        this.width = width;
+        this.height = height;
+        this.line = line;
+        this.cells = width * height;
+
+        // Indicator of the fullness of the board
+        this.filled = new Bitboard(cells);
+        for (int i=0; i < cells; i++) {
+            this.filled.setBit(i);
+        }
+
+        // Determine how many winning combinations can be
+        int possibleWins = height * (width - line + 1) +
+                width * (height - line + 1) +
+                2 * (height - line + 1) * (width - line + 1);
+        this.winCells = new int[possibleWins][];
+
+        // Determine which series can win the game
+        int winIndex = 0;
+
+        // Horizontals
+        for (int shift=0; shift < (width - line + 1); shift++) {
+            for (int i=0; i < height; i++) {
+                winCells[winIndex++] = line(i, shift, 0, 1);
+            }
+        }
+
+        // Verticals
+        for (int shift=0; shift < (height - line + 1); shift++) {
+            for (int i=0; i < width; i++) {
+                winCells[winIndex++] = line(shift, i, 1, 0);
+            }
+        }
+
+        // Diagonals
+        for (int j=0; j < (width - line + 1); j++) {
+            for (int i=0; i < (height - line + 1); i++) {
+                winCells[winIndex++] = line(i, j, 1, 1);
+                winCells[winIndex++] = line(i, width - 1 - j, 1, -1);
+            }
+        }
+
+        // Index of the winnings by cells
+        int[] cellWinsCount = new int[cells];
+        for (int i=0; i < possibleWins; i++) {
+            for (int cell : winCells[i]) {
+                cellWinsCount[cell]++;
+            }
+        }
+        this.cellWins = new int[cells][];
+        for (int cell=0; cell < cells; cell++) {
+            this.cellWins[cell] = new int[cellWinsCount[cell]];
+            cellWinsCount[cell] = 0;
+        }
+        for (int i=0; i < possibleWins; i++) {
+            for (int cell : winCells[i]) {
+                this.cellWins[cell][cellWinsCount[cell]++] = i;
+            }
+        }
+
+        // Every stone in a winning multiplies its score by 8. The score is limited,
+        // so that the sum over all winnings stays far below a win in the search
+        this.weights = new int[line + 1];
+        for (int k=1; k <= line; k++) {
+            this.weights[k] = 1 << Math.min(3 * (k - 1), 10);
+        }
+
+        // Columns masks clear the bits wrapped to the next row by a horizontal shift
+        this.notFirstColumn = new Bitboard(filled);
+        this.notLastColumn = new Bitboard(filled);
+        for (int i=0; i < height; i++) {
+            this.notFirstColumn.clearBit(i * width);
+            this.notLastColumn.clearBit(i * width + width - 1);
+        }
+
+        // Symmetries: 8 of the square board, 4 (reflections and rotation by 180) of the rectangular one
+        int count = (width == height) ? 8 : 4;
+        this.symmetries = new int[count][cells];
+        this.inverses = new int[count][cells];
+        for (int i=0; i < height; i++) {
+            for (int j=0; j < width; j++) {
+                int ri = height - 1 - i;
+                int rj = width - 1 - j;
+                int[] images = {i * width + j, i * width + rj, ri * width + j, ri * width + rj,
+                        j * width + i, j * width + ri, rj * width + i, rj * width + ri};
+                for (int k=0; k < count; k++) {
+                    this.symmetries[k][i * width + j] = images[k];
+                    this.inverses[k][images[k]] = i * width + j;
+                }
+            }
+        }
+
+        // The counter may lay out the winnings of the geometry, so it is created the last
+        this.counter = LineCounter.create(this, LineCounter.VECTOR);
+    }
+
+    /**
+     * @return the cells of the line starting at (i, j) in the direction (di, dj)
+     */
+    private int[] line(int i, int j, int di, int dj) {
+        int[] res = new int[line];
+        for (int k=0; k < line; k++) {
+            res[k] = (i + k * di) * width + j + k * dj;
+        }
+        return res;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    public int getCells() {
+        return cells;
+    }
+
+    /**
+     * @return number of long words holding a bitboard of the board
+     */
+    public int getWords() {
+        return filled.getWords();
+    }
+
+    /**
+     * @return number of symmetries of the board
+     */
+    public int getSymmetries() {
+        return symmetries.length;
+    }
+
+    /**
+     * @return number of wining lines
+     */
+    public int getWinsCount() {
+        return winCells.length;
+    }
+}
@@ -0,0 +1,91 @@
+package kuruhuru.tictactoe.ai;
+
+import java.util.Arrays;
+
+/**
+ * The class counts the stones of both players in all winnings of a packed position,
+ * as Game.setPosition needs them. The counts tell the complete winnings (all cells of a player)
+ * and the threatened ones (all cells but one, no opponent's stones).
+ * <p>
+ * The scalar counter adds every stone to the winnings passing through its cell, so its cost grows
+ * with the stones rather than with the winnings. The counter over the Vector API tests the masks
+ * of all winnings against the board, a vector of the neighbouring winnings at a time; it is selected
+ * by -Dtictactoe.vector=true, if it is on the class path. It is compiled separately from src-vector,
+ * because the incubator module needs --add-modules jdk.incubator.vector both to compile and to run.
+ * If it can not be loaded, the scalar counter is used.
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+public abstract class LineCounter {
+
+    public static final boolean VECTOR = Boolean.getBoolean("tictactoe.vector");
+
+    private static final String VECTOR_CLASS = "kuruhuru.tictactoe.ai.VectorLineCounter";
+
+    final Geometry geometry;
+
+    LineCounter(Geometry geometry) {
+        this.geometry = geometry;
+    }
+
+    /**
+     * @param vector true for the counter over the Vector API, if it is available
+     * @return a counter of the geometry
+     */
+    public static LineCounter create(Geometry geometry, boolean vector) {
+        if (vector) {
+            try {
+                return (LineCounter) Class.forName(VECTOR_CLASS).getDeclaredConstructor(Geometry.class)
+                        .newInstance(geometry);
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // the class or the incubator module is missing, the scalar counter does the same
+            }
+        }
+        return new Scalar(geometry);
+    }
+
+    /**
+     * @return name of the implementation
+     */
+    public abstract String getName();
+
+    /**
+     * Counts the stones of every winning. A cell must not be taken by both players
+     * @param x words of the crosses
+     * @param o words of the zeros
+     * @param offset index of the first word of the position
+     * @param winsX the crosses of every winning
+     * @param winsO the zeros of every winning
+     */
+    public abstract void count(long[] x, long[] o, int offset, byte[] winsX, byte[] winsO);
+
+    /**
+     * The counter of a stone at a time
+     */
+    static final class Scalar extends LineCounter {
+
+        Scalar(Geometry geometry) {
+            super(geometry);
+        }
+
+        @Override
+        public String getName() {
+            return "scalar";
+        }
+
+        @Override
+        public void count(long[] x, long[] o, int offset, byte[] winsX, byte[] winsO) {
+            int[][] cellWins = geometry.cellWins;
+            Arrays.fill(winsX, 0, geometry.winCells.length, (byte) 0);
+            Arrays.fill(winsO, 0, geometry.winCells.length, (byte) 0);
+            for (int i = 0, words = geometry.getWords(); i < words; i++) {
+                long mask = geometry.filled.getWord(i);
+                for (long bits = x[offset + i] & mask; bits != 0; bits &= bits - 1)
+                    for (int w : cellWins[(i << 6) + Long.numberOfTrailingZeros(bits)]) winsX[w]++;
+                for (long bits = o[offset + i] & mask; bits != 0; bits &= bits - 1)
+                    for (int w : cellWins[(i << 6) + Long.numberOfTrailingZeros(bits)]) winsO[w]++;
+            }
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package kuruhuru.tictactoe.ai;
+
+import kuruhuru.tictactoe.bignum.Bitboard;
+
+import java.util.ArrayList;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The class implements a Monte Carlo tree search (UCT) for large boards.
+ * The search is root-parallel: every thread grows its own tree on its own copy of the game,
+ * the visits of the root moves are summed over the threads when the time is over.
+ * The tree is kept in preallocated primitive arrays: the children of a node are stored
+ * next to each other and the node refers to the first of them. A playout plays
+ * the wining move or blocks the opponent's one if there is such, otherwise a random move
+ * next to the stones, and takes all moves back at the end, so neither the tree
+ * nor the playouts allocate after the construction.
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+public class MonteCarloSearch {
+
+    public static final int DEFAULT_NODES = 1 << 18;  // tree capacity per thread
+    public static final int PLAYOUT_MOVES = 256;      // a longer playout is a draw
+    public static final int DISTANCE = 1;             // the moves are looked for next to the stones
+    public static final double EXPLORATION = 1.4;     // UCT exploration constant
+
+    private static final int CHECK_INTERVAL = 16; // playouts between the time checks
+
+    public static class Result {
+        int move;        // cell of the best move
+        int visits;      // visits of the best move over all threads
+        double winRate;  // share of won playouts of the best move, a draw counts as a half
+        long playouts;
+        long nanos;
+
+        public int getMove() {
+            return move;
+        }
+
+        public int getVisits() {
+            return visits;
+        }
+
+        public double getWinRate() {
+            return winRate;
+        }
+
+        public long getPlayouts() {
+            return playouts;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public long getPlayoutsPerSecond() {
+            return nanos == 0 ? 0 : playouts * 1_000_000_000L / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{move=" + move + ", visits=" + visits + ", winRate=" + String.format("%.3f", winRate)
+                    + ", playouts=" + playouts + ", pps=" + getPlayoutsPerSecond() + "}";
+        }
+    }
+
+    private final Game game;
+    private final Worker main;
+    private final Worker[] helpers;
+    private final ExecutorService pool;
+    private volatile boolean aborted;
+
+    public MonteCarloSearch(Game game, int threads) {
+        this(game, threads, DEFAULT_NODES);
+    }
+
+    /**
+     * @param game the game to search. The workers copy the position before every search
+     * @param threads number of threads including the calling one
+     * @param nodes tree capacity per thread
+     */
+    public MonteCarloSearch(Game game, int threads, int nodes) {
+        threads = Math.max(1, threads);
+        this.game = game;
+        this.main = new Worker(game.getGeometry(), nodes, 0);
+        this.helpers = new Worker[threads - 1];
+        for (int i = 0; i < helpers.length; i++)
+            helpers[i] = new Worker(game.getGeometry(), nodes, i + 1);
+        this.pool = threads > 1 ? Executors.newFixedThreadPool(threads - 1, r -> {
+            Thread thread = new Thread(r, "mcts-helper");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    /**
+     * Searches the best move of the player within the time budget
+     */
+    public Result search(Game.Player player, long timeMillis) {
+        long start = System.nanoTime();
+        long deadline = start + timeMillis * 1_000_000L;
+        aborted = false;
+        ArrayList<Future<?>> futures = new ArrayList<>(helpers.length);
+        for (Worker helper : helpers) {
+            helper.reset(game);
+            futures.add(pool.submit(() -> helper.run(player, deadline)));
+        }
+        main.reset(game);
+        main.run(player, deadline);
+        aborted = true;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        // The root children are expanded in the same order by all workers
+        Result res = new Result();
+        res.move = -1;
+        for (int child = 0; child < main.childCount[0]; child++) {
+            int node = main.firstChild[0] + child;
+            int visits = main.visits[node];
+            double wins = main.wins[node];
+            for (Worker helper : helpers) {
+                visits += helper.visits[helper.firstChild[0] + child];
+                wins += helper.wins[helper.firstChild[0] + child];
+            }
+            if (res.move < 0 || visits > res.visits) {
+                res.move = main.move[node];
+                res.visits = visits;
+                res.winRate = visits == 0 ? 0 : wins / visits;
+            }
+        }
+        res.playouts = main.playouts;
+        for (Worker helper : helpers) res.playouts += helper.playouts;
+        res.nanos = System.nanoTime() - start;
+        return res;
+    }
+
+    /**
+     * Stops the running search
+     */
+    public void stop() {
+        aborted = true;
+    }
+
+    /**
+     * Stops the helper threads
+     */
+    public void shutdown() {
+        if (pool != null)
+            pool.shutdownNow();
+    }
+
+    /**
+     * The tree and the game of a thread
+     */
+    private class Worker {
+        final Game game;
+        final SplittableRandom random;
+        final int capacity;
+        // The tree: a node is the position after its move
+        final int[] move;
+        final int[] firstChild;
+        final int[] childCount;
+        final int[] visits;
+        final float[] wins;  // won playouts of the player, who made the move of the node
+        int nodes;
+        long playouts;
+
+        // Buffers of an iteration
+        final int[] path;     // nodes from the root
+        final int[] stack;    // moves made from the root position
+        final int[] moves;
+        final Bitboard threats;
+        final long[] x;       // the position copied from the searched game
+        final long[] o;
+
+        Worker(Geometry geometry, int capacity, int seed) {
+            this.game = new Game(geometry);
+            this.random = new SplittableRandom(0x4D435453L + seed);
+            this.capacity = capacity;
+            this.move = new int[capacity];
+            this.firstChild = new int[capacity];
+            this.childCount = new int[capacity];
+            this.visits = new int[capacity];
+            this.wins = new float[capacity];
+            this.path = new int[geometry.cells + 1];
+            this.stack = new int[geometry.cells];
+            this.moves = new int[geometry.cells];
+            this.threats = new Bitboard(geometry.cells);
+            this.x = new long[geometry.getWords()];
+            this.o = new long[geometry.getWords()];
+        }
+
+        /**
+         * Copies the position and clears the tree
+         */
+        void reset(Game position) {
+            position.getPosition(x, o, 0);
+            game.setPosition(x, o, 0);
+            nodes = 1;
+            playouts = 0;
+            move[0] = -1;
+            childCount[0] = 0;
+            visits[0] = 0;
+            wins[0] = 0;
+        }
+
+        void run(Game.Player player, long deadline) {
+            if (game.status() != Game.Result.UNFINISHED || !expand(0, player)) return;
+            while (!aborted) {
+                for (int i = 0; i < CHECK_INTERVAL; i++) iterate(player);
+                if (System.nanoTime() >= deadline) break;
+            }
+        }
+
+        /**
+         * Selects a leaf, expands it, plays out and updates the path
+         */
+        void iterate(Game.Player root) {
+            int node = 0;
+            int depth = 0;
+            Game.Player player = root;
+            path[0] = 0;
+            while (childCount[node] > 0) {
+                node = select(node);
+                game.makeMove(move[node], player);
+                stack[depth++] = move[node];
+                path[depth] = node;
+                player = player.next();
+            }
+            int tree = depth; // moves in the tree
+
+            Game.Result result = game.status();
+            if (result == Game.Result.UNFINISHED && visits[node] > 0 && expand(node, player)) {
+                node = firstChild[node] + random.nextInt(childCount[node]);
+                game.makeMove(move[node], player);
+                stack[depth++] = move[node];
+                path[++tree] = node;
+                player = player.next();
+                result = game.status();
+            }
+
+            // Playout
+            for (int n = 0; result == Game.Result.UNFINISHED && n < PLAYOUT_MOVES; n++) {
+                int cell = playoutMove(player);
+                game.makeMove(cell, player);
+                stack[depth++] = cell;
+                player = player.next();
+                result = game.status();
+            }
+            playouts++;
+
+            // The player of the node made its move, the root has no move
+            Game.Player mover = root;
+            for (int i = 1; i <= tree; i++) {
+                int n = path[i];
+                visits[n]++;
+                if (result == Game.Result.DRAW || result == Game.Result.UNFINISHED) wins[n] += 0.5f;
+                else if (result.ordinal() == mover.ordinal()) wins[n] += 1;
+                mover = mover.next();
+            }
+            visits[0]++;
+
+            for (int i = depth - 1; i >= 0; i--) {
+                player = player.next();
+                game.undoMove(stack[i], player);
+            }
+        }
+
+        /**
+         * @return the child with the best upper confidence bound, an unvisited child first
+         */
+        int select(int node) {
+            double logVisits = Math.log(visits[node] + 1);
+            int best = firstChild[node];
+            double bestValue = -1;
+            for (int child = firstChild[node], end = child + childCount[node]; child < end; child++) {
+                if (visits[child] == 0) return child;
+                double value = wins[child] / visits[child] + EXPLORATION * Math.sqrt(logVisits / visits[child]);
+                if (value > bestValue) {
+                    bestValue = value;
+                    best = child;
+                }
+            }
+            return best;
+        }
+
+        /**
+         * Adds the children of the node: the wining moves if there are, otherwise the blocks of
+         * the opponent's wining moves if there are, otherwise the moves next to the stones
+         * @return false if the tree is full
+         */
+        boolean expand(int node, Game.Player player) {
+            int count = forcedMoves(player);
+            if (count == 0) count = game.findCandidateMoves(DISTANCE, moves);
+            if (nodes + count > capacity) return false;
+            firstChild[node] = nodes;
+            childCount[node] = count;
+            for (int i = 0; i < count; i++) {
+                int child = nodes++;
+                move[child] = moves[i];
+                childCount[child] = 0;
+                visits[child] = 0;
+                wins[child] = 0;
+            }
+            return true;
+        }
+
+        int playoutMove(Game.Player player) {
+            int count = forcedMoves(player);
+            if (count == 0) count = game.findCandidateMoves(DISTANCE, moves);
+            return moves[random.nextInt(count)];
+        }
+
+        /**
+         * Writes into moves the wining moves of the player or, if there are none,
+         * the blocks of the opponent's wining moves. The patterns tell in O(1) if there are any
+         * @return number of the moves, 0 if there is no forced move
+         */
+        int forcedMoves(Game.Player player) {
+            int line = game.getLine();
+            if (game.patterns(player, line - 1) > 0)
+                return game.threats(player, 1, threats).toIndexes(moves);
+            if (game.patterns(player.next(), line - 1) > 0)
+                return game.threats(player.next(), 1, threats).toIndexes(moves);
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package kuruhuru.tictactoe.ai;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The class implements an opening book: the best moves of known positions of one geometry.
+ * A position is keyed by its canonical hash, the minimal hash over the symmetries of the board,
+ * so symmetric positions share one entry; the move is stored in the canonical orientation.
+ * The book is a sorted binary file, which is memory-mapped and probed by binary search,
+ * so opening it does not load the entries onto the heap.
+ * <p>
+ * File layout (big-endian): magic, version, width, height, line, count (ints),
+ * then count entries sorted by key: key (long), move (short), score (int). The score is the search's one,
+ * so a win keeps its distance, see Search.WIN.
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+public class OpeningBook implements Closeable {
+
+    static final int MAGIC = 0x54544F42; // "TTOB"
+    static final int VERSION = 2;
+    static final int HEADER_BYTES = 24;
+    static final int ENTRY_BYTES = 14;
+
+    private static final long SIDE_O = 0x9E3779B97F4A7C15L; // hash key of the zero to move
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final Geometry geometry;
+    private final int count;
+
+    private OpeningBook(FileChannel channel, MappedByteBuffer buffer, Geometry geometry, int count) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.geometry = geometry;
+        this.count = count;
+    }
+
+    /**
+     * Opens the book file
+     * @throws IOException if the file can not be read or is not a book
+     */
+    public static OpeningBook open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+                throw new IOException("Not an opening book: " + path);
+            Geometry geometry = Geometry.of(buffer.getInt(8), buffer.getInt(12), buffer.getInt(16));
+            int count = buffer.getInt(20);
+            if (buffer.capacity() < HEADER_BYTES + (long) count * ENTRY_BYTES)
+                throw new IOException("Truncated opening book: " + path);
+            return new OpeningBook(channel, buffer, geometry, count);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public Geometry getGeometry() {
+        return geometry;
+    }
+
+    /**
+     * @return number of positions in the book
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Looks for the best move of the player in the position
+     * @return the cell of the best move, -1 if the position is not in the book
+     */
+    public int probe(Game game, Game.Player player) {
+        if (game.getGeometry() != geometry) return -1;
+        int symmetry = canonicalSymmetry(game, player);
+        int index = find(key(game, player, symmetry));
+        if (index < 0) return -1;
+        int move = buffer.getShort(HEADER_BYTES + index * ENTRY_BYTES + 8);
+        return geometry.inverses[symmetry][move];
+    }
+
+    /**
+     * @return score of the position for the player, stored by the builder, 0 if the position is not in the book
+     */
+    public int score(Game game, Game.Player player) {
+        if (game.getGeometry() != geometry) return 0;
+        int index = find(key(game, player, canonicalSymmetry(game, player)));
+        return index < 0 ? 0 : buffer.getInt(HEADER_BYTES + index * ENTRY_BYTES + 10);
+    }
+
+    /**
+     * @return index of the entry with the key, -1 if there is none
+     */
+    private int find(long key) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midKey = buffer.getLong(HEADER_BYTES + mid * ENTRY_BYTES);
+            if (midKey < key) low = mid + 1;
+            else if (midKey > key) high = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * @return hash of the position transformed by the symmetry with the player to move
+     */
+    static long key(Game game, Game.Player player, int symmetry) {
+        long hash = game.symmetricHash(symmetry);
+        return player == Game.Player.X ? hash : hash ^ SIDE_O;
+    }
+
+    /**
+     * @return index of the symmetry, which gives the canonical (minimal) key of the position
+     */
+    static int canonicalSymmetry(Game game, Game.Player player) {
+        int res = 0;
+        long min = key(game, player, 0);
+        for (int symmetry = 1; symmetry < game.getGeometry().getSymmetries(); symmetry++) {
+            long key = key(game, player, symmetry);
+            if (key < min) {
+                min = key;
+                res = symmetry;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Writes the book file. The entries are sorted by key, the duplicated keys are dropped
+     * @param keys canonical keys of the positions
+     * @param moves best moves in the canonical orientation
+     * @param scores scores of the positions
+     * @param count number of entries
+     */
+    public static void write(Path path, Geometry geometry, long[] keys, short[] moves, int[] scores, int count)
+            throws IOException {
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(keys[a], keys[b]));
+
+        int unique = 0;
+        for (int i = 0; i < count; i++)
+            if (i == 0 || keys[order[i]] != keys[order[i - 1]]) unique++;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.BIG_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(geometry.width).putInt(geometry.height)
+                    .putInt(geometry.line).putInt(unique);
+            for (int i = 0; i < count; i++) {
+                int entry = order[i];
+                if (i > 0 && keys[entry] == keys[order[i - 1]]) continue;
+                if (buffer.remaining() < ENTRY_BYTES) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) channel.write(buffer);
+                    buffer.clear();
+                }
+                buffer.putLong(keys[entry]).putShort(moves[entry]).putInt(scores[entry]);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package kuruhuru.tictactoe.ai;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * The class builds an opening book offline: it enumerates the positions reachable from
+ * the empty board within a number of plies, playing the moves near the stones,
+ * searches every position and writes the best moves to the book file.
+ * Symmetric positions are searched once.
+ * Arguments: width height line plies millisPerPosition maxPositions output
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+public class OpeningBookBuilder {
+
+    public static final int DISTANCE = 1; // the moves are enumerated next to the stones
+
+    private final Geometry geometry;
+    private final long timeMillis;
+    private final int maxPositions;
+
+    /**
+     * @param timeMillis search time of every position
+     * @param maxPositions limit of the book size
+     */
+    public OpeningBookBuilder(Geometry geometry, long timeMillis, int maxPositions) {
+        this.geometry = geometry;
+        this.timeMillis = timeMillis;
+        this.maxPositions = maxPositions;
+    }
+
+    /**
+     * Builds the book of the positions within the plies and writes it to the file
+     * @return number of positions written
+     */
+    public int build(int plies, Path path) throws IOException {
+        long[] keys = new long[maxPositions];
+        short[] moves = new short[maxPositions];
+        int[] scores = new int[maxPositions];
+        int count = 0;
+
+        Game game = new Game(geometry);
+        Search search = new Search(game);
+        int[] candidates = new int[geometry.cells];
+        HashSet<Long> seen = new HashSet<>();
+        ArrayDeque<int[]> queue = new ArrayDeque<>(); // move sequences of the positions to search
+        queue.add(new int[0]);
+        seen.add(OpeningBook.key(game, Game.Player.X, 0));
+
+        while (!queue.isEmpty() && count < maxPositions) {
+            int[] line = queue.poll();
+            Game.Player player = replay(game, line);
+            if (game.status() != Game.Result.UNFINISHED) {
+                unwind(game, line); // the next line is replayed from the empty board
+                continue;
+            }
+
+            Search.SearchResult res = search.search(player, timeMillis);
+            int symmetry = OpeningBook.canonicalSymmetry(game, player);
+            keys[count] = OpeningBook.key(game, player, symmetry);
+            moves[count] = (short) geometry.symmetries[symmetry][res.getMove().lowestSetBit()];
+            scores[count] = res.getScore();
+            count++;
+
+            if (line.length + 1 < plies) {
+                int n = game.findCandidateMoves(DISTANCE, candidates);
+                for (int i = 0; i < n; i++) {
+                    game.makeMove(candidates[i], player);
+                    Game.Player next = player.next();
+                    if (seen.add(OpeningBook.key(game, next, OpeningBook.canonicalSymmetry(game, next)))) {
+                        int[] child = Arrays.copyOf(line, line.length + 1);
+                        child[line.length] = candidates[i];
+                        queue.add(child);
+                    }
+                    game.undoMove(candidates[i], player);
+                }
+            }
+            unwind(game, line);
+        }
+
+        OpeningBook.write(path, geometry, keys, moves, scores, count);
+        return count;
+    }
+
+    /**
+     * Plays the moves from the empty board
+     * @return the player to move
+     */
+    private static Game.Player replay(Game game, int[] line) {
+        Game.Player player = Game.Player.X;
+        for (int move : line) {
+            game.makeMove(move, player);
+            player = player.next();
+        }
+        return player;
+    }
+
+    /**
+     * Takes the moves back to the empty board
+     */
+    private static void unwind(Game game, int[] line) {
+        Game.Player player = (line.length % 2 == 0) ? Game.Player.O : Game.Player.X;
+        for (int i = line.length - 1; i >= 0; i--) {
+            game.undoMove(line[i], player);
+            player = player.next();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 7) {
+            System.out.println("Usage: OpeningBookBuilder width height line plies millisPerPosition maxPositions output");
+            return;
+        }
+        Geometry geometry = Geometry.of(Integer.parseInt(args[0]), Integer.parseInt(args[1]),
+                Integer.parseInt(args[2]));
+        OpeningBookBuilder builder = new OpeningBookBuilder(geometry, Long.parseLong(args[4]),
+                Integer.parseInt(args[5]));
+        long start = System.nanoTime();
+        int count = builder.build(Integer.parseInt(args[3]), Paths.get(args[6]));
+        System.out.printf("%d positions written in %.1f s%n", count, (System.nanoTime() - start) / 1e9);
+    }
+}
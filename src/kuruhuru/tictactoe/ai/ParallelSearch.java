@@ -0,0 +1,134 @@
+package kuruhuru.tictactoe.ai;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The class implements a multi-threaded search (Lazy SMP).
+ * Every thread searches its own copy of the game and all threads share
+ * one lock-free transposition table. The copies are made once and set to the position of the game
+ * before every search. The main search runs in the calling thread,
+ * helper searches run in the pool and are stopped when the main search completes.
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+public class ParallelSearch {
+
+    private final Game game;
+    private final TranspositionTable table;
+    private final ExecutorService pool;
+    private final Search main;
+    private final Game[] copies; // the games of the helpers
+    private final Search[] helpers;
+    private final long[] x;      // the position copied from the game
+    private final long[] o;
+
+    /**
+     * @param game the game to search. Helpers copy the position before every search
+     * @param threads number of threads including the calling one
+     */
+    public ParallelSearch(Game game, int threads) {
+        this(game, threads, new TranspositionTable(Search.TABLE_MEGABYTES));
+    }
+
+    public ParallelSearch(Game game, int threads, TranspositionTable table) {
+        threads = Math.max(1, threads);
+        this.game = game;
+        this.table = table;
+        this.main = new Search(game, table);
+        this.copies = new Game[threads - 1];
+        this.helpers = new Search[threads - 1];
+        for (int i = 0; i < helpers.length; i++) {
+            copies[i] = new Game(game);
+            helpers[i] = new Search(copies[i], table);
+        }
+        this.x = new long[game.getGeometry().getWords()];
+        this.o = new long[game.getGeometry().getWords()];
+        this.pool = threads > 1 ? Executors.newFixedThreadPool(threads - 1, r -> {
+            Thread thread = new Thread(r, "search-helper");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    /**
+     * @return number of threads including the calling one
+     */
+    public int getThreads() {
+        return helpers.length + 1;
+    }
+
+    public TranspositionTable getTable() {
+        return table;
+    }
+
+    /**
+     * Sets the opening book of the main search, see {@link Search#setOpeningBook(OpeningBook)}.
+     * The helpers are stopped when the main search answers from the book
+     */
+    public void setOpeningBook(OpeningBook book) {
+        main.setOpeningBook(book);
+    }
+
+    /**
+     * Sets the tablebase of the main and helper searches, see {@link Search#setTablebase(Tablebase)}
+     */
+    public void setTablebase(Tablebase tablebase) {
+        main.setTablebase(tablebase);
+        for (Search helper : helpers)
+            helper.setTablebase(tablebase);
+    }
+
+    /**
+     * Searches the best move of the player within the time budget
+     */
+    public Search.SearchResult search(Game.Player player, long timeMillis) {
+        return search(player, timeMillis, Search.MAX_DEPTH);
+    }
+
+    /**
+     * Searches the best move of the player within the time budget and depth limit.
+     * The move and depth are taken from the main search, the nodes are summed over all threads
+     */
+    public Search.SearchResult search(Game.Player player, long timeMillis, int maxDepth) {
+        long start = System.nanoTime();
+        ArrayList<Future<Search.SearchResult>> futures = new ArrayList<>(helpers.length);
+        if (helpers.length > 0) game.getPosition(x, o, 0);
+        for (int i = 0; i < helpers.length; i++) {
+            copies[i].restorePosition(x, o, 0);
+            Search helper = helpers[i];
+            helper.resume();
+            int number = i + 1;
+            futures.add(pool.submit(() -> helper.search(player, timeMillis, maxDepth, number)));
+        }
+
+        main.resume();
+        Search.SearchResult res = main.search(player, timeMillis, maxDepth, 0);
+
+        for (Search helper : helpers)
+            helper.stop();
+        for (Future<Search.SearchResult> future : futures) {
+            try {
+                res.nodes += future.get().nodes;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        res.nanos = System.nanoTime() - start;
+        return res;
+    }
+
+    /**
+     * Stops the helper threads
+     */
+    public void shutdown() {
+        if (pool != null)
+            pool.shutdownNow();
+    }
+}
@@ -0,0 +1,241 @@
+package kuruhuru.tictactoe.ai;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The class searches on the opponent's time. After the engine's move the opponent's reply is predicted:
+ * the best move of the position kept in the transposition table by the engine's search, or a short search
+ * if there is none. The answer to the predicted reply is searched in a background thread of the ponderer
+ * until the opponent moves. If the opponent plays the predicted move (a ponder hit), the pondering search
+ * gets the rest of the time budget and its answer is returned, at once if it has already thought
+ * for the whole budget. Otherwise the pondering is stopped and the actual position is searched
+ * with the same table, which keeps the subtrees searched by the pondering.
+ * A ponderer serves one game, the pondering runs in a pool shared by the ponderers; a pondering,
+ * which waits for a thread of the pool, is dropped when the opponent moves.
+ * The ponderer is used by one thread at a time, only shutdown() may be called from any thread.
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+public class Ponderer {
+
+    public static final long PREDICTION_MILLIS = 20; // time of the search of the opponent's reply
+    public static final long PONDER_MILLIS = TimeUnit.DAYS.toMillis(1); // the pondering runs until it is stopped
+
+    private final Game game;
+    private final Game position; // the predicted position searched in the background
+    private final Search search;
+    private final Search ponder;
+    private final ExecutorService pool; // shared by the ponderers
+    private final long[] x;      // the position copied from the game
+    private final long[] o;
+
+    private volatile boolean closed; // set by shutdown()
+    private volatile Pondering pondering;
+    private volatile int expected = TranspositionTable.NO_MOVE; // the predicted reply, known when the pondering starts
+    private volatile long started; // System.nanoTime() when the answer to the predicted reply is searched
+    private long hits;
+    private long misses;
+
+    /**
+     * @param game the played game. The ponderer copies the position before the pondering
+     * @param table the table shared by the search and the pondering
+     * @param pool the pool of the pondering threads, see {@link #newPool(int)}
+     */
+    public Ponderer(Game game, TranspositionTable table, ExecutorService pool) {
+        this.game = game;
+        this.position = new Game(game.getGeometry());
+        this.search = new Search(game, table);
+        this.ponder = new Search(position, table);
+        this.pool = pool;
+        this.x = new long[game.getGeometry().getWords()];
+        this.o = new long[game.getGeometry().getWords()];
+    }
+
+    /**
+     * @param threads number of the games pondering at the same time
+     * @return a pool of the daemon pondering threads
+     */
+    public static ExecutorService newPool(int threads) {
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "ponder");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Sets the opening book of the search and the pondering, see {@link Search#setOpeningBook(OpeningBook)}
+     */
+    public void setOpeningBook(OpeningBook book) {
+        search.setOpeningBook(book);
+        ponder.setOpeningBook(book);
+    }
+
+    /**
+     * Searches the best move of the player without pondering, the running pondering is stopped
+     */
+    public Search.SearchResult search(Game.Player player, long timeMillis) {
+        cancel();
+        return search.search(player, timeMillis);
+    }
+
+    /**
+     * Starts the pondering after the engine's move
+     * @param opponent the side to move
+     * @return false if the game is over or the ponderer is shut down
+     */
+    public boolean start(Game.Player opponent) {
+        cancel();
+        if (game.status() != Game.Result.UNFINISHED) return false;
+        game.getPosition(x, o, 0);
+        position.setPosition(x, o, 0);
+        int predicted = search.tableMove(opponent);
+        ponder.resume();
+        if (closed) return false; // resumed before shutdown() stops it, or shutdown() has been called
+        Pondering task = new Pondering();
+        try {
+            task.future = pool.submit(() -> task.claimed.compareAndSet(false, true) ? ponder(opponent, predicted) : null);
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+        pondering = task;
+        return true;
+    }
+
+    /**
+     * The task of the pondering thread
+     * @param predicted the opponent's move from the table, TranspositionTable.NO_MOVE if there is none
+     * @return the answer to the predicted move, null if the pondering is stopped before the prediction
+     */
+    private Search.SearchResult ponder(Game.Player opponent, int predicted) {
+        if (ponder.isAborted()) return null;
+        if (predicted == TranspositionTable.NO_MOVE || !position.makeMove(predicted, opponent)) {
+            Search.SearchResult reply = ponder.search(opponent, PREDICTION_MILLIS, Search.MAX_DEPTH, 0);
+            if (ponder.isAborted() || reply.getMove() == null) return null;
+            predicted = reply.getMove().lowestSetBit();
+            position.makeMove(predicted, opponent);
+        }
+        if (position.status() != Game.Result.UNFINISHED) return null;
+        started = System.nanoTime();
+        expected = predicted;
+        return ponder.search(opponent.next(), PONDER_MILLIS, Search.MAX_DEPTH, 0);
+    }
+
+    /**
+     * Answers the opponent's move, which is already made on the game
+     * @param move cell of the opponent's move
+     * @param player the side to move
+     * @param timeMillis time budget of the answer
+     * @return the best move found
+     */
+    public Search.SearchResult answer(int move, Game.Player player, long timeMillis) {
+        if (pondering != null && expected == move) {
+            long left = timeMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            try {
+                if (left > 0) pondering.future.get(left, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // the time is over, the result of the last completed iteration is taken
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+            Search.SearchResult res = finish();
+            if (res != null && res.getMove() != null) {
+                hits++;
+                return res;
+            }
+        }
+        misses++;
+        return search(player, timeMillis);
+    }
+
+    /**
+     * Stops the pondering and waits for its thread
+     */
+    public void cancel() {
+        finish();
+    }
+
+    /**
+     * Stops the pondering without waiting for it, the ponderer does not ponder any more.
+     * The pool is not shut down, it is shared
+     */
+    public void shutdown() {
+        closed = true;
+        ponder.stop(); // after closed is set, so that start() can not resume the search
+        Pondering task = pondering;
+        if (task != null) task.drop();
+    }
+
+    /**
+     * @return number of the opponent's moves answered by the pondering
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of the opponent's moves searched anew
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Stops the pondering and waits for it, so that the position is not searched any more
+     * @return its result, null if there was no pondering or it was stopped before the prediction
+     */
+    private Search.SearchResult finish() {
+        Pondering task = pondering;
+        if (task == null) return null;
+        pondering = null;
+        expected = TranspositionTable.NO_MOVE;
+        ponder.stop();
+        if (task.drop()) return null;
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true; // the pondering thread must be waited for anyway
+                }
+            }
+        } catch (CancellationException e) {
+            return null; // dropped by shutdown()
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A submitted pondering. It is claimed either by the pool thread, which runs it, or by drop(),
+     * so a pondering, which waits for a thread, is dropped and the running one is waited for:
+     * cancelling the future of a running task would not wait for its thread
+     */
+    private static final class Pondering {
+        final AtomicBoolean claimed = new AtomicBoolean();
+        Future<Search.SearchResult> future; // set before the pondering is published by the volatile field
+
+        /**
+         * @return true if the pondering has not started, it never runs then
+         */
+        boolean drop() {
+            if (!claimed.compareAndSet(false, true)) return false;
+            future.cancel(false); // does not take a thread of the pool
+            return true;
+        }
+    }
+}
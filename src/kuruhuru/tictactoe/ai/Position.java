@@ -0,0 +1,133 @@
+package kuruhuru.tictactoe.ai;
+
+import java.util.Arrays;
+
+/**
+ * The class holds an immutable snapshot of a game position: the packed words of the crosses and zeros
+ * in one array, the side to move, the number of moves and the Zobrist hash.
+ * The positions are values: equal positions are equal and have equal hash codes, so they can be
+ * kept in history stacks and used as map keys. A position does not refer to other positions,
+ * the undo history is kept by its owner, see {@link PositionHistory}.
+ * A 15x15 position takes 112 bytes: 32 of the object and 80 of the array of 8 words.
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+public final class Position {
+
+    private final Geometry geometry;
+    private final long[] words; // the words of the crosses, then the words of the zeros, never changed
+    private final long hash;    // Zobrist hash as returned by Game.getHash()
+    private final int state;    // number of moves << 1 | ordinal of the side to move
+
+    private Position(Geometry geometry, long[] words, long hash, int moves, Game.Player player) {
+        this.geometry = geometry;
+        this.words = words;
+        this.hash = hash;
+        this.state = moves << 1 | player.ordinal();
+    }
+
+    /**
+     * Takes the snapshot of the game
+     * @param player side to move
+     */
+    public static Position of(Game game, Game.Player player) {
+        int words = game.getGeometry().getWords();
+        long[] position = new long[2 * words];
+        game.getPosition(position, 0, position, words);
+        return new Position(game.getGeometry(), position, game.getHash(), game.getMoves(), player);
+    }
+
+    /**
+     * @return the position after the move of the side to move
+     * @throws IllegalArgumentException if the cell is outside the board or taken
+     */
+    public Position play(int cell) {
+        if (cell < 0 || cell >= geometry.getCells() || !isEmpty(cell))
+            throw new IllegalArgumentException("Illegal move " + cell);
+        Game.Player player = getPlayer();
+        long[] words = this.words.clone();
+        words[(player == Game.Player.X ? 0 : geometry.getWords()) + (cell >>> 6)] |= 1L << cell;
+        return new Position(geometry, words, hash ^ Game.zobrist(player, cell), getMoves() + 1, player.next());
+    }
+
+    /**
+     * Sets the position on the game of the same geometry. A position of the game's history is set
+     * by taking back and making the moves, which differ, see {@link Game#restorePosition(long[], long[], int)}
+     * @return the side to move
+     */
+    public Game.Player restore(Game game) {
+        if (game.getGeometry() != geometry) throw new IllegalArgumentException("The game has other geometry");
+        game.restorePosition(words, 0, words, geometry.getWords());
+        return getPlayer();
+    }
+
+    public Geometry getGeometry() {
+        return geometry;
+    }
+
+    /**
+     * @return the side to move
+     */
+    public Game.Player getPlayer() {
+        return (state & 1) == 0 ? Game.Player.X : Game.Player.O;
+    }
+
+    public int getMoves() {
+        return state >>> 1;
+    }
+
+    /**
+     * @return Zobrist hash of the position, the same as Game.getHash() of the game in this position
+     */
+    public long getHash() {
+        return hash;
+    }
+
+    public boolean isEmpty(int cell) {
+        return ((words[cell >>> 6] | words[geometry.getWords() + (cell >>> 6)]) & 1L << cell) == 0;
+    }
+
+    public Game.Field getField(int cell) {
+        if ((words[cell >>> 6] & 1L << cell) != 0) return Game.Field.X;
+        if ((words[geometry.getWords() + (cell >>> 6)] & 1L << cell) != 0) return Game.Field.O;
+        return Game.Field.EMPTY;
+    }
+
+    /**
+     * Writes packed words of the crosses and zeros as Game.getPosition does
+     */
+    public void getWords(long[] x, long[] o, int offset) {
+        int count = geometry.getWords();
+        System.arraycopy(words, 0, x, offset, count);
+        System.arraycopy(words, count, o, offset, count);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof Position)) return false;
+        Position other = (Position) obj;
+        return hash == other.hash && state == other.state && geometry == other.geometry
+                && Arrays.equals(words, other.words);
+    }
+
+    @Override
+    public int hashCode() {
+        long h = hash ^ ((state & 1) == 0 ? 0 : 0x9E3779B97F4A7C15L);
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder res = new StringBuilder();
+        for (int i = 0; i < geometry.getHeight(); i++) {
+            for (int j = 0; j < geometry.getWidth(); j++) {
+                Game.Field field = getField(i * geometry.getWidth() + j);
+                res.append('|').append(field == Game.Field.X ? 'X' : field == Game.Field.O ? 'O' : '_');
+            }
+            res.append("|\n");
+        }
+        return res.append(getPlayer()).append(" to move").toString();
+    }
+}
@@ -0,0 +1,98 @@
+package kuruhuru.tictactoe.ai;
+
+import java.util.Arrays;
+
+/**
+ * The class keeps the undo history of a game: the positions after every move and the moves.
+ * The moves are made on the game; undo and redo set the game to a position of the history
+ * by {@link Position#restore(Game)}, which takes back or makes only the moves, which differ.
+ * A move made after undo drops the undone positions.
+ * <p>
+ * The positions do not share structure with their predecessors, each one holds its own copy of the words.
+ * A shared position would be a chain of moves back to a full one, so restoring and comparing it would walk
+ * the chain and keep every older position alive; the copy is 2 * words longs (16 on 15x15) per move,
+ * which the history keeps anyway, and restoring it is O(words) plus the moves, which differ.
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+public final class PositionHistory {
+
+    private final Game game;
+    private Position[] positions; // positions[0] is the start, positions[i] is the position after moves[i - 1]
+    private int[] moves;
+    private int size;             // number of the positions
+    private int current;          // index of the position of the game
+
+    /**
+     * Starts the history from the position of the game
+     * @param player side to move
+     */
+    public PositionHistory(Game game, Game.Player player) {
+        this.game = game;
+        this.positions = new Position[16];
+        this.moves = new int[16];
+        this.positions[0] = Position.of(game, player);
+        this.size = 1;
+    }
+
+    /**
+     * @return the position of the game
+     */
+    public Position getPosition() {
+        return positions[current];
+    }
+
+    /**
+     * @return the side to move
+     */
+    public Game.Player getPlayer() {
+        return positions[current].getPlayer();
+    }
+
+    /**
+     * @return cell of the last move, -1 if the game is at the start of the history
+     */
+    public int getLastMove() {
+        return current == 0 ? -1 : moves[current - 1];
+    }
+
+    /**
+     * Makes the move of the side to move on the game
+     * @return false if the move is illegal, the history is not changed then
+     */
+    public boolean play(int cell) {
+        Game.Player player = getPlayer();
+        if (!game.makeMove(cell, player)) return false;
+        if (current + 1 == positions.length) {
+            positions = Arrays.copyOf(positions, 2 * positions.length);
+            moves = Arrays.copyOf(moves, 2 * moves.length);
+        }
+        Position next = positions[current].play(cell);
+        Arrays.fill(positions, current + 1, size, null); // the undone positions
+        moves[current++] = cell;
+        positions[current] = next;
+        size = current + 1;
+        return true;
+    }
+
+    /**
+     * Takes back the last move
+     * @return false if the game is at the start of the history
+     */
+    public boolean undo() {
+        if (current == 0) return false;
+        positions[--current].restore(game);
+        return true;
+    }
+
+    /**
+     * Makes the move taken back by undo
+     * @return false if no move is taken back
+     */
+    public boolean redo() {
+        if (current + 1 == size) return false;
+        positions[++current].restore(game);
+        return true;
+    }
+}
@@ -0,0 +1,435 @@
+package kuruhuru.tictactoe.ai;
+
+import kuruhuru.tictactoe.bignum.Bignum;
+import kuruhuru.tictactoe.bignum.Bitboard;
+import kuruhuru.tictactoe.metrics.Metrics;
+
+import java.util.Arrays;
+
+/**
+ * The class implements a search of the best move:
+ * iterative deepening negamax with alpha-beta pruning.
+ * Moves are ordered according to {@link Game#sortPossibleMoves(Game.Player)},
+ * the search stops when the time budget is exhausted.
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+public class Search {
+
+    public static final int WIN = 1_000_000; // score of the win on the first ply
+    public static final int MAX_DEPTH = 64;  // depth limit of iterative deepening
+    public static final int TABLE_MEGABYTES = 16; // default size of the transposition table
+    public static final int THREAT_DEPTH = 12;    // maximal number of fours looked for at the root
+    public static final int CANDIDATE_DISTANCE = 2; // quiet moves are searched only near the stones
+
+    private static final int TIME_CHECK_MASK = 63; // time is checked every 64 nodes
+    private static final long SIDE_O = 0x9E3779B97F4A7C15L; // hash key of the zero to move
+
+    public static class SearchResult {
+        Bignum move = null;  // the best move, null if there are no moves
+        int score = 0;       // score of the best move for the player
+        int depth = 0;       // depth of the last completed iteration
+        long nodes = 0;      // nodes searched
+        long nanos = 0;      // time spent
+
+        public Bignum getMove() {
+            return move;
+        }
+
+        public int getScore() {
+            return score;
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+
+        public long getNodes() {
+            return nodes;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public long getNodesPerSecond() {
+            return nanos == 0 ? 0 : nodes * 1_000_000_000L / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return "SearchResult{" +
+                    "score=" + score +
+                    ", depth=" + depth +
+                    ", nodes=" + nodes +
+                    ", nps=" + getNodesPerSecond() +
+                    '}';
+        }
+    }
+
+    private final Game game;
+    private final TranspositionTable table;
+    private final ThreatSearch threats;
+    private Tablebase tablebase; // perfect play of small boards, null if there is none
+    private OpeningBook book;    // the moves of the known openings, null if there is none
+
+    // Per ply buffers, so that the search does not allocate
+    private final int[][] moveBuffers;
+    private final SortedMoves[] ownMoves;
+    private final SortedMoves[] opponentMoves;
+    private final Bitboard empty;
+    private final Bitboard candidates;
+    private final Bitboard taken;
+    private final Bitboard group;
+
+    private long nodes;     // nodes searched in the current call
+    private long deadline;  // System.nanoTime() when the search must stop
+    private boolean stopped;
+    private volatile boolean aborted; // set by stop() from another thread
+
+    public Search(Game game) {
+        this(game, new TranspositionTable(TABLE_MEGABYTES));
+    }
+
+    public Search(Game game, TranspositionTable table) {
+        this.game = game;
+        this.table = table;
+        this.threats = new ThreatSearch(game, this);
+        int cells = game.getCells();
+        this.moveBuffers = new int[MAX_DEPTH + 1][cells];
+        this.ownMoves = new SortedMoves[MAX_DEPTH + 1];
+        this.opponentMoves = new SortedMoves[MAX_DEPTH + 1];
+        for (int i = 0; i <= MAX_DEPTH; i++) {
+            ownMoves[i] = new SortedMoves(cells);
+            opponentMoves[i] = new SortedMoves(cells);
+        }
+        this.empty = new Bitboard(cells);
+        this.candidates = new Bitboard(cells);
+        this.taken = new Bitboard(cells);
+        this.group = new Bitboard(cells);
+    }
+
+    /**
+     * Searches the best move of the player within the time budget
+     * @param player side to move
+     * @param timeMillis time budget in milliseconds
+     * @return the best move found
+     */
+    public SearchResult search(Game.Player player, long timeMillis) {
+        return search(player, timeMillis, MAX_DEPTH);
+    }
+
+    /**
+     * Searches the best move of the player within the time budget and depth limit
+     * @param player side to move
+     * @param timeMillis time budget in milliseconds
+     * @param maxDepth depth limit
+     * @return the best move of the last completed iteration
+     */
+    public SearchResult search(Game.Player player, long timeMillis, int maxDepth) {
+        aborted = false;
+        return search(player, timeMillis, maxDepth, 0);
+    }
+
+    /**
+     * Sets the tablebase. The positions it covers are answered from the table without search
+     */
+    public void setTablebase(Tablebase tablebase) {
+        this.tablebase = tablebase;
+    }
+
+    /**
+     * Sets the opening book. The positions found in the book are answered by its move without search
+     */
+    public void setOpeningBook(OpeningBook book) {
+        this.book = book;
+    }
+
+    /**
+     * Stops the running search, also its threat search at the root.
+     * The search returns the result of the last completed iteration
+     */
+    public void stop() {
+        aborted = true;
+    }
+
+    /**
+     * Allows the search to run after stop(). The helper searches are resumed by the owner
+     * before they are started, so that stop() can not be lost
+     */
+    void resume() {
+        aborted = false;
+    }
+
+    /**
+     * @return true if the search is stopped by stop()
+     */
+    boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * @return the best move of the position stored in the table, TranspositionTable.NO_MOVE if there is none
+     */
+    int tableMove(Game.Player player) {
+        long entry = table.probe(hash(player));
+        return entry == 0 ? TranspositionTable.NO_MOVE : TranspositionTable.move(entry);
+    }
+
+    /**
+     * Searches the best move. Helper searches of the parallel search start from the different depth
+     * and search root moves in the different order, so that they fill the shared table
+     * with the different positions
+     * @param helper 0 for the main search, number of the helper otherwise
+     */
+    SearchResult search(Game.Player player, long timeMillis, int maxDepth, int helper) {
+        if (!Metrics.ENABLED) return deepen(player, timeMillis, maxDepth, helper);
+        long start = Metrics.SEARCH.start();
+        try {
+            return deepen(player, timeMillis, maxDepth, helper);
+        } finally {
+            Metrics.SEARCH.stop(start);
+        }
+    }
+
+    private SearchResult deepen(Game.Player player, long timeMillis, int maxDepth, int helper) {
+        long start = System.nanoTime();
+        SearchResult res = new SearchResult();
+        nodes = 0;
+        stopped = false;
+        deadline = start + timeMillis * 1_000_000L;
+
+        // a move of the book is checked, the positions are keyed by hashes
+        int bookMove = helper == 0 && book != null ? book.probe(game, player) : -1;
+        if (bookMove >= 0 && game.status() == Game.Result.UNFINISHED
+                && game.getField(bookMove / game.getWidth(), bookMove % game.getWidth()) == Game.Field.EMPTY) {
+            res.move = game.cell(bookMove);
+            res.score = book.score(game, player);
+            res.nanos = System.nanoTime() - start;
+            return res;
+        }
+
+        int count = orderedMoves(player, 0);
+        if (count > 0 && game.status() == Game.Result.UNFINISHED) {
+            int[] moves = Arrays.copyOf(moveBuffers[0], count);
+            int bestMove = moves[0];
+
+            // A small board is answered by the tablebase, a forced win by fours is found
+            // much faster by the threat search. A position the tablebase can not reach is searched
+            int value = Tablebase.UNKNOWN;
+            int solvedMove = -1;
+            if (tablebase != null && tablebase.covers(game) && Tablebase.sideToMove(game) == player) {
+                value = tablebase.value(game);
+                if (value != Tablebase.UNKNOWN) solvedMove = tablebase.bestMove(game);
+            }
+            boolean solved = solvedMove >= 0;
+            int[] win = helper == 0 && !solved ? threats.solve(player, THREAT_DEPTH, false, deadline) : null;
+            if (solved) {
+                // The tablebase does not store the distance to the end, the score is the bound of it
+                int remaining = game.getCells() - game.getMoves();
+                maxDepth = 0;
+                bestMove = solvedMove;
+                res.score = value == Tablebase.WIN ? WIN - remaining
+                        : value == Tablebase.LOSS ? -(WIN - remaining) : 0;
+                res.depth = remaining;
+            } else if (win != null) {
+                maxDepth = 0;
+                bestMove = win[0];
+                res.score = WIN - win.length;
+                res.depth = win.length;
+                nodes += threats.getNodes();
+            }
+            maxDepth = Math.min(Math.min(maxDepth, MAX_DEPTH), game.getCells() - game.getMoves());
+
+            if (helper > 0 && count > 1) {
+                rotate(moves, 1 + helper % (count - 1));
+            }
+
+            for (int depth = 1 + (helper & 1); depth <= maxDepth; depth++) {
+                int best = 0;
+                int alpha = -WIN - 1;
+                for (int i = 0; i < count; i++) {
+                    game.makeMove(moves[i], player);
+                    int score = -negamax(player.next(), depth - 1, -WIN - 1, -alpha, 1);
+                    game.undoMove(moves[i], player);
+                    if (stopped) break;
+                    if (score > alpha) {
+                        alpha = score;
+                        best = i;
+                    }
+                }
+                if (stopped) break; // the iteration is not completed
+
+                bestMove = moves[best];
+                res.score = alpha;
+                res.depth = depth;
+
+                // the best move of the previous iteration is searched first
+                moveToFront(moves, best);
+
+                if (Math.abs(alpha) >= WIN - depth) break; // the game is solved
+            }
+            res.move = game.cell(bestMove);
+        }
+
+        res.nodes = nodes;
+        res.nanos = System.nanoTime() - start;
+        return res;
+    }
+
+    /**
+     * Negamax with alpha-beta pruning
+     * @return score of the position for the player
+     */
+    private int negamax(Game.Player player, int depth, int alpha, int beta, int ply) {
+        nodes++;
+        if ((nodes & TIME_CHECK_MASK) == 0 && (aborted || System.nanoTime() - deadline > 0)) {
+            stopped = true;
+            return 0;
+        }
+
+        Game.Result result = game.status();
+        if (result == Game.Result.DRAW) return 0;
+        if (result != Game.Result.UNFINISHED) return -(WIN - ply); // the opponent has won
+
+        if (depth == 0) return evaluate(player, ply);
+
+        long hash = hash(player);
+        long entry = table.probe(hash);
+        if (entry != 0 && TranspositionTable.depth(entry) >= depth) {
+            int score = fromTable(TranspositionTable.score(entry), ply);
+            int bound = TranspositionTable.bound(entry);
+            if (bound == TranspositionTable.EXACT
+                    || (bound == TranspositionTable.LOWER && score >= beta)
+                    || (bound == TranspositionTable.UPPER && score <= alpha))
+                return score;
+        }
+
+        int[] moves = moveBuffers[ply];
+        int count = orderedMoves(player, ply);
+        if (entry != 0 && TranspositionTable.move(entry) != TranspositionTable.NO_MOVE) {
+            int hashMove = TranspositionTable.move(entry);
+            for (int i = 0; i < count; i++) {
+                if (moves[i] == hashMove) {
+                    moveToFront(moves, i);
+                    break;
+                }
+            }
+        }
+
+        int alphaOrig = alpha;
+        int best = -WIN - 1;
+        int bestMove = TranspositionTable.NO_MOVE;
+        for (int i = 0; i < count; i++) {
+            int move = moves[i];
+            game.makeMove(move, player);
+            int score = -negamax(player.next(), depth - 1, -beta, -alpha, ply + 1);
+            game.undoMove(move, player);
+            if (stopped) return 0;
+            if (score > best) {
+                best = score;
+                bestMove = move;
+                if (score > alpha) alpha = score;
+                if (alpha >= beta) break;
+            }
+        }
+
+        int bound = best >= beta ? TranspositionTable.LOWER
+                : best > alphaOrig ? TranspositionTable.EXACT : TranspositionTable.UPPER;
+        table.store(hash, toTable(best, ply), depth, bound, bestMove);
+        return best;
+    }
+
+    /**
+     * Rotates all moves but the first one by the distance
+     */
+    private static void rotate(int[] moves, int distance) {
+        int[] rest = Arrays.copyOfRange(moves, 1, moves.length);
+        for (int i = 0; i < rest.length; i++)
+            moves[1 + (i + distance) % rest.length] = rest[i];
+    }
+
+    private static void moveToFront(int[] moves, int index) {
+        int move = moves[index];
+        System.arraycopy(moves, 0, moves, 1, index);
+        moves[0] = move;
+    }
+
+    /**
+     * @return hash of the position with the player to move
+     */
+    private long hash(Game.Player player) {
+        return player == Game.Player.X ? game.getHash() : game.getHash() ^ SIDE_O;
+    }
+
+    /**
+     * Win scores are stored relative to the position, not to the root
+     */
+    private static int toTable(int score, int ply) {
+        if (score >= WIN - MAX_DEPTH * 2) return score + ply;
+        if (score <= -WIN + MAX_DEPTH * 2) return score - ply;
+        return score;
+    }
+
+    private static int fromTable(int score, int ply) {
+        if (score >= WIN - MAX_DEPTH * 2) return score - ply;
+        if (score <= -WIN + MAX_DEPTH * 2) return score + ply;
+        return score;
+    }
+
+    /**
+     * Static evaluation of the position for the player
+     */
+    private int evaluate(Game.Player player, int ply) {
+        if (game.patterns(player, game.getLine() - 1) > 0) // the player has a wining move
+            return WIN - ply - 1;
+        return game.evaluate(player);
+    }
+
+    /**
+     * Writes possible moves of the player into the move buffer of the ply:
+     * wining move, blocking of the opponent's wining move,
+     * forks, checks, good moves and then other empty fields near the stones
+     * @return number of moves
+     */
+    private int orderedMoves(Game.Player player, int ply) {
+        int[] moves = moveBuffers[ply];
+        SortedMoves own = game.sortPossibleMoves(player, ownMoves[ply]);
+        if (own.hasWining()) {
+            moves[0] = own.wining.lowestSetBit();
+            return 1;
+        }
+        SortedMoves opponent = game.sortPossibleMoves(player.next(), opponentMoves[ply]);
+        if (opponent.hasWining()) { // all other moves lose
+            moves[0] = opponent.wining.lowestSetBit();
+            return 1;
+        }
+
+        game.emptyFields(empty);
+        taken.clear();
+        int count = 0;
+        count = addMoves(own.fork, moves, count);
+        count = addMoves(opponent.fork, moves, count);
+        count = addMoves(own.potentialForks, moves, count);
+        count = addMoves(own.checks, moves, count);
+        count = addMoves(opponent.potentialForks, moves, count);
+        count = addMoves(opponent.checks, moves, count);
+        count = addMoves(own.goodMoves, moves, count);
+        count = addMoves(opponent.goodMoves, moves, count);
+        count = addMoves(game.candidates(CANDIDATE_DISTANCE, candidates), moves, count);
+        return count;
+    }
+
+    /**
+     * Adds empty fields of the group, which are not added yet
+     * @return number of moves
+     */
+    private int addMoves(Bitboard fields, int[] moves, int count) {
+        group.and(fields, empty).andNot(group, taken);
+        taken.or(taken, group);
+        for (int cell = group.nextSetBit(0); cell >= 0; cell = group.nextSetBit(cell + 1))
+            moves[count++] = cell;
+        return count;
+    }
+}
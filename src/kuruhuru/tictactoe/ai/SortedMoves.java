@@ -1,22 +1,45 @@
 package kuruhuru.tictactoe.ai;
 
-import kuruhuru.tictactoe.bignum.Bignum;
+import kuruhuru.tictactoe.bignum.Bitboard;
 
 /**
  * Moves sorted according strength
  */
 public class SortedMoves {
-    Bignum wining;          // wining move
-    Bignum fork;            // wining fork
-    Bignum potentialForks;  // potential forks
-    Bignum checks;          // Checks - threat of winning
-    Bignum goodMoves;      // The moves, which in the future can build a winning series
+    final Bitboard wining;          // wining moves, zero if there is none
+    final Bitboard fork;            // wining forks: the moves making two checks at once
+    final Bitboard potentialForks;  // potential forks: the checks making a three as well
+    final Bitboard checks;          // Checks - threat of winning
+    final Bitboard goodMoves;       // The moves, which in the future can build a winning series
 
-    SortedMoves() {
-        wining = null;
-        fork = null;
-        potentialForks = null;
-        checks = null;
-        goodMoves = null;
+    /**
+     * Creates empty sorted moves
+     * @param cells number of cells on the board
+     */
+    SortedMoves(int cells) {
+        wining = new Bitboard(cells);
+        fork = new Bitboard(cells);
+        potentialForks = new Bitboard(cells);
+        checks = new Bitboard(cells);
+        goodMoves = new Bitboard(cells);
+    }
+
+    /**
+     * Removes all moves, so that the object can be reused
+     */
+    void clear() {
+        wining.clear();
+        fork.clear();
+        potentialForks.clear();
+        checks.clear();
+        goodMoves.clear();
+    }
+
+    public boolean hasWining() {
+        return !wining.isZero();
+    }
+
+    public boolean hasFork() {
+        return !fork.isZero();
     }
 }
@@ -0,0 +1,250 @@
+package kuruhuru.tictactoe.ai;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * The class implements a tablebase of a small board: the game-theoretic value of every position
+ * reachable from the empty board with the crosses moving first.
+ * A position is indexed by a perfect hash: the number written in base 3, where the digit of a cell
+ * is 0 for empty, 1 for a cross and 2 for a zero. The value for the side to move takes 2 bits.
+ * The table is computed by an exhaustive memoised negamax, so the boards are limited
+ * to MAX_CELLS cells (3x3, 3x4, 3x5, 4x4): 3^16 positions take 10.8 MB.
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+public class Tablebase {
+
+    public static final int MAX_CELLS = 16;
+
+    // Values of the position for the side to move
+    public static final int UNKNOWN = 0; // the position is not reachable
+    public static final int LOSS = 1;
+    public static final int DRAW = 2;
+    public static final int WIN = 3;
+
+    static final int MAGIC = 0x54544254; // "TTBT"
+
+    private final Geometry geometry;
+    private final int[] powers; // powers of 3 by cells
+    private final long[] values; // 2 bits per position, 32 positions per word
+
+    private Tablebase(Geometry geometry, long[] values) {
+        this.geometry = geometry;
+        this.powers = new int[geometry.cells];
+        int power = 1;
+        for (int i = 0; i < geometry.cells; i++) {
+            powers[i] = power;
+            power *= 3;
+        }
+        this.values = values;
+    }
+
+    private static long[] table(Geometry geometry) {
+        if (geometry.cells > MAX_CELLS)
+            throw new IllegalArgumentException("The board has " + geometry.cells + " cells, at most "
+                    + MAX_CELLS + " are supported");
+        long positions = 1;
+        for (int i = 0; i < geometry.cells; i++) positions *= 3;
+        return new long[(int) ((positions + 31) / 32)];
+    }
+
+    /**
+     * Computes the value of every reachable position of the board
+     * @throws IllegalArgumentException if the board has more than MAX_CELLS cells
+     */
+    public static Tablebase solve(Geometry geometry) {
+        Tablebase res = new Tablebase(geometry, table(geometry));
+        res.solve(new Game(geometry), 0, Game.Player.X);
+        return res;
+    }
+
+    /**
+     * @return value of the position for the player to move
+     */
+    private int solve(Game game, int index, Game.Player player) {
+        int value = get(index);
+        if (value != UNKNOWN) return value;
+
+        Game.Result result = game.status();
+        if (result == Game.Result.DRAW) {
+            value = DRAW;
+        } else if (result != Game.Result.UNFINISHED) {
+            value = LOSS; // the opponent has won by the last move
+        } else {
+            // every move is searched, so that all reachable positions get their values
+            value = LOSS;
+            int digit = (player == Game.Player.X) ? 1 : 2;
+            for (int cell = 0; cell < geometry.cells; cell++) {
+                if (!game.makeMove(cell, player)) continue;
+                int child = solve(game, index + digit * powers[cell], player.next());
+                game.undoMove(cell, player);
+                if (child == LOSS) value = WIN;
+                else if (child == DRAW && value == LOSS) value = DRAW;
+            }
+        }
+        set(index, value);
+        return value;
+    }
+
+    public Geometry getGeometry() {
+        return geometry;
+    }
+
+    /**
+     * @return true if the tablebase has values of the game's board
+     */
+    public boolean covers(Game game) {
+        return game.getGeometry() == geometry;
+    }
+
+    /**
+     * @return the player to move in the game: the crosses move when the numbers of stones are equal
+     */
+    public static Game.Player sideToMove(Game game) {
+        return (game.getMoves() % 2 == 0) ? Game.Player.X : Game.Player.O;
+    }
+
+    /**
+     * @return value of the position for the side to move: WIN, DRAW, LOSS or UNKNOWN if it is not reachable
+     */
+    public int value(Game game) {
+        return get(index(game));
+    }
+
+    /**
+     * @return the cell of the best move of the side to move, -1 if the game is finished or not reachable.
+     * Of the wining moves the one winning soonest is taken, of the losing ones the one losing latest
+     */
+    public int bestMove(Game game) {
+        if (game.status() != Game.Result.UNFINISHED) return -1;
+        Game.Player player = sideToMove(game);
+        int digit = (player == Game.Player.X) ? 1 : 2;
+        int index = index(game);
+        int best = -1;
+        int bestValue = UNKNOWN;
+        int bestDistance = 0;
+        for (int cell = 0; cell < geometry.cells; cell++) {
+            if (game.getField(cell / geometry.width, cell % geometry.width) != Game.Field.EMPTY) continue;
+            int child = index + digit * powers[cell];
+            if (get(child) == UNKNOWN) continue;
+            // the best move leaves the opponent the worst value
+            int value = WIN + 1 - get(child);
+            int distance = 0;
+            if (value != DRAW && value >= bestValue) {
+                game.makeMove(cell, player);
+                distance = distance(game, child, player.next());
+                game.undoMove(cell, player);
+            }
+            if (value > bestValue || value == WIN && distance < bestDistance
+                    || value == LOSS && distance > bestDistance) {
+                bestValue = value;
+                bestDistance = distance;
+                best = cell;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @param index perfect hash of the position, which is won or lost for the side to move
+     * @return number of moves to the end of the game, if the winner hurries and the loser delays.
+     * The bound is deepened, so a short win is found without searching the long lines
+     */
+    private int distance(Game game, int index, Game.Player player) {
+        int res = 0;
+        while (!ends(game, index, player, res)) res++;
+        return res;
+    }
+
+    /**
+     * @return true if the game ends in at most the moves, if the winner hurries and the loser delays
+     */
+    private boolean ends(Game game, int index, Game.Player player, int moves) {
+        if (game.status() != Game.Result.UNFINISHED) return true;
+        if (moves == 0) return false;
+        boolean win = get(index) == WIN;
+        int digit = (player == Game.Player.X) ? 1 : 2;
+        for (int cell = 0; cell < geometry.cells; cell++) {
+            if (!game.makeMove(cell, player)) continue;
+            int child = index + digit * powers[cell];
+            // the winner plays only the moves, which keep the win
+            boolean ends = (!win || get(child) == LOSS) && ends(game, child, player.next(), moves - 1);
+            game.undoMove(cell, player);
+            if (win == ends) return win;
+        }
+        return !win;
+    }
+
+    /**
+     * @return perfect hash of the position
+     */
+    int index(Game game) {
+        int res = 0;
+        for (int cell = 0; cell < geometry.cells; cell++) {
+            Game.Field field = game.getField(cell / geometry.width, cell % geometry.width);
+            if (field == Game.Field.X) res += powers[cell];
+            else if (field == Game.Field.O) res += 2 * powers[cell];
+        }
+        return res;
+    }
+
+    private int get(int index) {
+        return (int) (values[index >>> 5] >>> ((index & 31) << 1)) & 3;
+    }
+
+    private void set(int index, int value) {
+        int shift = (index & 31) << 1;
+        values[index >>> 5] = (values[index >>> 5] & ~(3L << shift)) | ((long) value << shift);
+    }
+
+    /**
+     * Writes the tablebase: magic, width, height, line (ints), then the packed values
+     */
+    public void write(Path path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(geometry.width);
+            out.writeInt(geometry.height);
+            out.writeInt(geometry.line);
+            for (long word : values) out.writeLong(word);
+        }
+    }
+
+    /**
+     * Reads the tablebase written by write()
+     */
+    public static Tablebase read(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC) throw new IOException("Not a tablebase: " + path);
+            Geometry geometry = Geometry.of(in.readInt(), in.readInt(), in.readInt());
+            long[] values = table(geometry);
+            for (int i = 0; i < values.length; i++) values[i] = in.readLong();
+            return new Tablebase(geometry, values);
+        }
+    }
+
+    /**
+     * Generates the tablebase file
+     * Arguments: width height line output
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4) {
+            System.out.println("Usage: Tablebase width height line output");
+            return;
+        }
+        long start = System.nanoTime();
+        Tablebase tablebase = solve(Geometry.of(Integer.parseInt(args[0]), Integer.parseInt(args[1]),
+                Integer.parseInt(args[2])));
+        tablebase.write(Paths.get(args[3]));
+        System.out.printf("Value of the empty board: %d, solved in %.1f s%n",
+                tablebase.value(new Game(tablebase.geometry)), (System.nanoTime() - start) / 1e9);
+    }
+}
@@ -0,0 +1,240 @@
+package kuruhuru.tictactoe.ai;
+
+import kuruhuru.tictactoe.bignum.Bitboard;
+import kuruhuru.tictactoe.metrics.Metrics;
+
+import java.util.Arrays;
+
+/**
+ * The class implements a threat-space search: it looks for a forced win of the attacker
+ * searching only sequences of threats.
+ * A four is a move after which the attacker needs one more move to win, so the defender
+ * has to block it. A three is a move after which the attacker needs two more moves in a line,
+ * the defender blocks it in the line or answers with his own four.
+ * Searching only fours (VCF, victory by continuous fours) the defender's replies are forced,
+ * so the tree is very narrow; searching also threes (VCT) finds more wins at a higher cost.
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+public class ThreatSearch {
+
+    public static final int MAX_DEPTH = 32; // maximal number of threats in a sequence
+    public static final long NODE_LIMIT = 1_000_000; // default limit of nodes per call
+
+    private static final long SIDE_O = 0x9E3779B97F4A7C15L;
+    private static final long DEPTH_KEY = 0xC2B2AE3D27D4EB4FL;
+    private static final long THREES_KEY = 0x165667B19E3779F9L;
+    private static final int REFUTED_SIZE = 1 << 16;
+    private static final int TIME_CHECK_MASK = 63; // time is checked every 64 nodes
+
+    private final Game game;
+    private final Search owner; // the search, which stops the threat search by stop(), null if there is none
+
+    // Per level bitboards, so that the search does not allocate
+    private final Bitboard[] fours;
+    private final Bitboard[] threes;
+    private final Bitboard[] defences;
+    private final Bitboard wining;
+    private final Bitboard scratch;
+
+    private final int[][] pv;     // principal variation of every level
+    private final int[] pvLength;
+    private final long[] refuted; // keys of positions without a forced win, indexed by low bits of the key
+
+    private boolean withThrees;
+    private long nodes;
+    private long nodeLimit = NODE_LIMIT;
+    private boolean timed;       // true if the call has a deadline
+    private long deadline;       // System.nanoTime() when the call must stop
+    private boolean interrupted; // the node limit or the deadline is reached
+
+    public ThreatSearch(Game game) {
+        this(game, null);
+    }
+
+    ThreatSearch(Game game, Search owner) {
+        this.game = game;
+        this.owner = owner;
+        int cells = game.getCells();
+        this.fours = new Bitboard[MAX_DEPTH + 1];
+        this.threes = new Bitboard[MAX_DEPTH + 1];
+        this.defences = new Bitboard[MAX_DEPTH + 1];
+        for (int i = 0; i <= MAX_DEPTH; i++) {
+            fours[i] = new Bitboard(cells);
+            threes[i] = new Bitboard(cells);
+            defences[i] = new Bitboard(cells);
+        }
+        this.wining = new Bitboard(cells);
+        this.scratch = new Bitboard(cells);
+        this.pv = new int[MAX_DEPTH + 1][2 * MAX_DEPTH + 1];
+        this.pvLength = new int[MAX_DEPTH + 1];
+        this.refuted = new long[REFUTED_SIZE];
+    }
+
+    /**
+     * Looks for a victory by continuous fours (VCF)
+     * @param attacker side to move
+     * @param depth maximal number of fours
+     * @return the wining sequence of cells: attacker's move, defender's move, ..., attacker's wining move,
+     * null if there is no forced win
+     */
+    public int[] solve(Game.Player attacker, int depth) {
+        return solve(attacker, depth, false);
+    }
+
+    /**
+     * Looks for a forced win by threats
+     * @param attacker side to move
+     * @param depth maximal number of threats
+     * @param withThrees false for VCF, true for VCT (victory by continuous threats)
+     * @return the wining sequence of cells: attacker's move, defender's move, ..., attacker's wining move,
+     * null if there is no forced win
+     */
+    public int[] solve(Game.Player attacker, int depth, boolean withThrees) {
+        timed = false;
+        return measure(attacker, depth, withThrees);
+    }
+
+    /**
+     * Looks for a forced win by threats within the time. A call, which reaches the deadline,
+     * reports no forced win
+     * @param attacker side to move
+     * @param depth maximal number of threats
+     * @param withThrees false for VCF, true for VCT (victory by continuous threats)
+     * @param deadline System.nanoTime() when the search must stop
+     * @return the wining sequence of cells: attacker's move, defender's move, ..., attacker's wining move,
+     * null if there is no forced win
+     */
+    public int[] solve(Game.Player attacker, int depth, boolean withThrees, long deadline) {
+        this.timed = true;
+        this.deadline = deadline;
+        return measure(attacker, depth, withThrees);
+    }
+
+    private int[] measure(Game.Player attacker, int depth, boolean withThrees) {
+        if (!Metrics.ENABLED) return find(attacker, depth, withThrees);
+        long start = Metrics.THREAT_SEARCH.start();
+        try {
+            return find(attacker, depth, withThrees);
+        } finally {
+            Metrics.THREAT_SEARCH.stop(start);
+        }
+    }
+
+    private int[] find(Game.Player attacker, int depth, boolean withThrees) {
+        this.withThrees = withThrees;
+        this.nodes = 0;
+        this.interrupted = false;
+        if (game.status() != Game.Result.UNFINISHED) return null;
+        if (!attack(attacker, Math.min(depth, MAX_DEPTH), 0)) return null;
+        return Arrays.copyOf(pv[0], pvLength[0]);
+    }
+
+    /**
+     * Sets the limit of nodes per call. A call, which exceeds the limit, reports no forced win
+     */
+    public void setNodeLimit(long nodeLimit) {
+        this.nodeLimit = nodeLimit;
+    }
+
+    /**
+     * @return nodes searched in the last call
+     */
+    public long getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @return true if the attacker to move has a forced win
+     */
+    private boolean attack(Game.Player attacker, int depth, int level) {
+        nodes++;
+        Game.Player defender = attacker.next();
+
+        if (!game.threats(attacker, 1, wining).isZero()) {
+            pv[level][0] = wining.lowestSetBit();
+            pvLength[level] = 1;
+            return true;
+        }
+        if (depth == 0 || interrupted()) return false;
+
+        long key = game.getHash() ^ (attacker == Game.Player.O ? SIDE_O : 0)
+                ^ depth * DEPTH_KEY ^ (withThrees ? THREES_KEY : 0);
+        int index = (int) key & (REFUTED_SIZE - 1);
+        if (refuted[index] == key) return false;
+
+        // The defender's wining move must be blocked, and the block must be a threat itself
+        Bitboard forced = game.threats(defender, 1, scratch);
+        int forcedCount = forced.bitCount();
+        if (forcedCount > 1) {
+            refuted[index] = key;
+            return false;
+        }
+
+        Bitboard levelFours = game.threats(attacker, 2, fours[level]);
+        Bitboard levelThrees = threes[level].clear();
+        if (withThrees) {
+            game.threats(attacker, 3, levelThrees).andNot(levelThrees, levelFours);
+        }
+        if (forcedCount == 1) {
+            levelFours.and(levelFours, forced);
+            levelThrees.and(levelThrees, forced);
+        }
+
+        for (int cell = levelFours.nextSetBit(0); cell >= 0; cell = levelFours.nextSetBit(cell + 1)) {
+            if (threat(attacker, cell, depth, level)) return true;
+        }
+        for (int cell = levelThrees.nextSetBit(0); cell >= 0; cell = levelThrees.nextSetBit(cell + 1)) {
+            if (threat(attacker, cell, depth, level)) return true;
+        }
+
+        if (!interrupted) // the result of the interrupted search is not proven
+            refuted[index] = key;
+        return false;
+    }
+
+    /**
+     * @return true if the node limit or the deadline is reached or the owner is stopped,
+     * the search is interrupted since then
+     */
+    private boolean interrupted() {
+        if (!interrupted && (nodes > nodeLimit || (nodes & TIME_CHECK_MASK) == 0
+                && (timed && System.nanoTime() - deadline > 0 || owner != null && owner.isAborted())))
+            interrupted = true;
+        return interrupted;
+    }
+
+    /**
+     * Makes the threat and checks all defences
+     * @return true if the attacker wins against every defence
+     */
+    private boolean threat(Game.Player attacker, int cell, int depth, int level) {
+        Game.Player defender = attacker.next();
+        game.makeMove(cell, attacker);
+
+        Bitboard levelDefences = game.threats(cell, attacker, 1, defences[level]);
+        if (levelDefences.isZero() && withThrees) {
+            // a three: block it in the line or answer with a four
+            game.threats(cell, attacker, 2, levelDefences);
+            if (!levelDefences.isZero())
+                levelDefences.or(levelDefences, game.threats(defender, 2, scratch));
+        }
+
+        boolean wins = !levelDefences.isZero();
+        for (int d = levelDefences.nextSetBit(0); wins && d >= 0; d = levelDefences.nextSetBit(d + 1)) {
+            game.makeMove(d, defender);
+            wins = attack(attacker, depth - 1, level + 1);
+            game.undoMove(d, defender);
+            if (wins && d == levelDefences.lowestSetBit()) { // the line of the first defence
+                pv[level][0] = cell;
+                pv[level][1] = d;
+                System.arraycopy(pv[level + 1], 0, pv[level], 2, pvLength[level + 1]);
+                pvLength[level] = 2 + pvLength[level + 1];
+            }
+        }
+
+        game.undoMove(cell, attacker);
+        return wins;
+    }
+}
@@ -0,0 +1,120 @@
+package kuruhuru.tictactoe.ai;
+
+import java.util.Arrays;
+
+/**
+ * The class implements a transposition table of fixed size over primitive arrays.
+ * Every bucket holds two entries: the first one is replaced only by a deeper search,
+ * the second one is always replaced.
+ * An entry is packed into two longs: the position hash and the data
+ * (score, depth, bound and the best move).
+ * The table can be shared by several search threads without locks:
+ * the key is stored XOR-ed with the data, so an entry torn by concurrent writes
+ * does not match any position and is ignored.
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+public class TranspositionTable {
+
+    public static final int EXACT = 1; // the score is exact
+    public static final int LOWER = 2; // the score is a lower bound (beta cutoff)
+    public static final int UPPER = 3; // the score is an upper bound (all moves failed low)
+
+    public static final int NO_MOVE = -1;
+
+    private static final int ENTRY_BYTES = 16;
+
+    private final long[] keys;
+    private final long[] data;
+    private final int mask; // number of buckets - 1
+
+    /**
+     * Creates the table
+     * @param megabytes memory limit of the table
+     */
+    public TranspositionTable(int megabytes) {
+        long entries = Math.max(2, (long) Math.max(megabytes, 1) * 1024 * 1024 / ENTRY_BYTES);
+        int buckets = Integer.highestOneBit((int) Math.min(entries / 2, 1 << 29));
+        keys = new long[buckets * 2];
+        data = new long[buckets * 2];
+        mask = buckets - 1;
+    }
+
+    /**
+     * Removes all entries
+     */
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(data, 0);
+    }
+
+    /**
+     * @param hash position hash
+     * @return packed entry data, 0 if the position is not found
+     */
+    public long probe(long hash) {
+        int i = index(hash);
+        long entry = data[i];
+        if (entry != 0 && (keys[i] ^ entry) == hash) return entry;
+        entry = data[i + 1];
+        if (entry != 0 && (keys[i + 1] ^ entry) == hash) return entry;
+        return 0;
+    }
+
+    /**
+     * Stores search result of the position
+     * @param hash position hash
+     * @param score score of the position
+     * @param depth search depth
+     * @param bound EXACT, LOWER or UPPER
+     * @param move index of the best move cell or NO_MOVE
+     */
+    public void store(long hash, int score, int depth, int bound, int move) {
+        int i = index(hash);
+        long entry = pack(score, depth, bound, move);
+        long old = data[i];
+        if (old == 0 || (keys[i] ^ old) == hash || depth >= depth(old)) {
+            keys[i] = hash ^ entry;
+            data[i] = entry;
+        } else {
+            keys[i + 1] = hash ^ entry;
+            data[i + 1] = entry;
+        }
+    }
+
+    /**
+     * @return number of entries in the table
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    private int index(long hash) {
+        return ((int) (hash ^ (hash >>> 32)) & mask) << 1;
+    }
+
+    // data layout: score (32 bits) | depth (8 bits) | bound (2 bits) | move + 1 (16 bits)
+    private static long pack(int score, int depth, int bound, int move) {
+        return (score & 0xFFFFFFFFL)
+                | (long) (depth & 0xFF) << 32
+                | (long) bound << 40
+                | (long) ((move + 1) & 0xFFFF) << 42;
+    }
+
+    public static int score(long entry) {
+        return (int) entry;
+    }
+
+    public static int depth(long entry) {
+        return (int) (entry >>> 32) & 0xFF;
+    }
+
+    public static int bound(long entry) {
+        return (int) (entry >>> 40) & 0x3;
+    }
+
+    public static int move(long entry) {
+        return ((int) (entry >>> 42) & 0xFFFF) - 1;
+    }
+}
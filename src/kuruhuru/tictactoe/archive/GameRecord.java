@@ -0,0 +1,274 @@
+package kuruhuru.tictactoe.archive;
+
+import kuruhuru.tictactoe.ai.Game;
+import kuruhuru.tictactoe.ai.Geometry;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The class holds the record of a game: the configuration, the result and the moves,
+ * optionally with the evaluation and the thinking time of every move.
+ * The crosses make the first move. The record is reusable: a reader fills the same record
+ * with every game, so the moves of a file are never held in memory at once.
+ * <p>
+ * Encoding (big-endian): width, height, line, flags, result (bytes), number of moves (short),
+ * the moves as cell indexes (a byte each, a short if the board has more than 256 cells),
+ * the evaluations (a short each) if flags has EVALS, the times in milliseconds (an int each) if flags has TIMES.
+ * The record is encoded by writeTo(ByteBuffer) and decoded by readFrom(ByteBuffer), the streams
+ * of DataOutput and DataInput and the record files of GameRecordWriter and GameRecordReader use them.
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+public class GameRecord {
+
+    // Flags of the optional data
+    public static final int EVALS = 1;
+    public static final int TIMES = 2;
+
+    static final int HEADER_BYTES = 7; // bytes of the record before the moves
+
+    private Geometry geometry;
+    private Game.Result result = Game.Result.UNFINISHED;
+    private int flags;
+    private int count;
+    private int[] moves = new int[0];
+    private short[] evals = new short[0];
+    private int[] times = new int[0];
+    private byte[] scratch = new byte[64]; // the encoded record of writeTo and readFrom over DataOutput and DataInput
+
+    public GameRecord() {
+    }
+
+    public GameRecord(Geometry geometry) {
+        reset(geometry);
+    }
+
+    /**
+     * Clears the record of the game of the geometry
+     */
+    public void reset(Geometry geometry) {
+        this.geometry = geometry;
+        this.result = Game.Result.UNFINISHED;
+        this.flags = 0;
+        this.count = 0;
+        ensureCapacity(geometry.getCells());
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (moves.length < capacity) {
+            moves = Arrays.copyOf(moves, capacity);
+            evals = Arrays.copyOf(evals, capacity);
+            times = Arrays.copyOf(times, capacity);
+        }
+    }
+
+    /**
+     * Adds the move without evaluation and time
+     */
+    public void addMove(int cell) {
+        if (count == geometry.getCells()) throw new IllegalStateException("The board is full");
+        moves[count] = cell;
+        evals[count] = 0;
+        times[count] = 0;
+        count++;
+    }
+
+    /**
+     * Adds the move with its evaluation and thinking time, the record keeps them for every move
+     * @param eval evaluation, clamped to short
+     */
+    public void addMove(int cell, int eval, int millis) {
+        addMove(cell);
+        evals[count - 1] = (short) Math.max(-Short.MAX_VALUE, Math.min(Short.MAX_VALUE, eval));
+        times[count - 1] = millis;
+        flags |= EVALS | TIMES;
+    }
+
+    public void setResult(Game.Result result) {
+        this.result = result;
+    }
+
+    public Geometry getGeometry() {
+        return geometry;
+    }
+
+    public Game.Result getResult() {
+        return result;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public int getMoveCount() {
+        return count;
+    }
+
+    public int getMove(int i) {
+        return moves[i];
+    }
+
+    /**
+     * @return evaluation of the move, 0 if the record has no evaluations
+     */
+    public int getEval(int i) {
+        return evals[i];
+    }
+
+    /**
+     * @return thinking time of the move in milliseconds, 0 if the record has no times
+     */
+    public int getTime(int i) {
+        return times[i];
+    }
+
+    /**
+     * Plays the moves of the record on the game from the empty board
+     * @param game the game of the record's geometry
+     * @param plies number of moves to play
+     * @return false if a move is illegal
+     */
+    public boolean replay(Game game, int plies) {
+        if (game.getGeometry() != geometry) throw new IllegalArgumentException("The game has other geometry");
+        game.clear();
+        Game.Player player = Game.Player.X;
+        for (int i = 0; i < Math.min(plies, count); i++) {
+            if (!game.makeMove(moves[i], player)) return false;
+            player = player.next();
+        }
+        return true;
+    }
+
+    /**
+     * Plays all moves of the record on the game from the empty board
+     * @return false if a move is illegal
+     */
+    public boolean replay(Game game) {
+        return replay(game, count);
+    }
+
+    /**
+     * @return number of bytes of the encoded record
+     */
+    public int encodedBytes() {
+        return HEADER_BYTES + bodyBytes(geometry, flags, count);
+    }
+
+    /**
+     * @return number of bytes of the encoded record, which starts at the position of the buffer.
+     * The header of the record is read without moving the position
+     * @throws IOException if the header is corrupt
+     */
+    static int encodedBytes(ByteBuffer buffer) throws IOException {
+        int position = buffer.position();
+        Geometry geometry = Geometry.of(buffer.get(position) & 0xFF, buffer.get(position + 1) & 0xFF,
+                buffer.get(position + 2) & 0xFF);
+        int count = buffer.getShort(position + 5) & 0xFFFF;
+        check(geometry, count);
+        return HEADER_BYTES + bodyBytes(geometry, buffer.get(position + 3) & 0xFF, count);
+    }
+
+    private static int bodyBytes(Geometry geometry, int flags, int count) {
+        int res = count * moveBytes(geometry);
+        if ((flags & EVALS) != 0) res += 2 * count;
+        if ((flags & TIMES) != 0) res += 4 * count;
+        return res;
+    }
+
+    static int moveBytes(Geometry geometry) {
+        return geometry.getCells() > 256 ? 2 : 1;
+    }
+
+    /**
+     * Writes the encoded record at the position of the buffer
+     * @throws java.nio.BufferOverflowException if the buffer has less than encodedBytes() remaining
+     */
+    public void writeTo(ByteBuffer buffer) {
+        buffer.put((byte) geometry.getWidth())
+                .put((byte) geometry.getHeight())
+                .put((byte) geometry.getLine())
+                .put((byte) flags)
+                .put((byte) result.ordinal())
+                .putShort((short) count);
+        if (moveBytes(geometry) == 2) {
+            for (int i = 0; i < count; i++) buffer.putShort((short) moves[i]);
+        } else {
+            for (int i = 0; i < count; i++) buffer.put((byte) moves[i]);
+        }
+        if ((flags & EVALS) != 0)
+            for (int i = 0; i < count; i++) buffer.putShort(evals[i]);
+        if ((flags & TIMES) != 0)
+            for (int i = 0; i < count; i++) buffer.putInt(times[i]);
+    }
+
+    /**
+     * Reads the encoded record at the position of the buffer into this one
+     * @throws IOException if the record is corrupt
+     * @throws java.nio.BufferUnderflowException if the buffer has less than the encoded bytes remaining
+     */
+    public void readFrom(ByteBuffer buffer) throws IOException {
+        Geometry geometry = Geometry.of(buffer.get() & 0xFF, buffer.get() & 0xFF, buffer.get() & 0xFF);
+        int flags = buffer.get() & 0xFF;
+        Game.Result result = result(buffer.get() & 0xFF);
+        int count = buffer.getShort() & 0xFFFF;
+        check(geometry, count);
+        reset(geometry);
+        this.flags = flags;
+        this.result = result;
+        this.count = count;
+        boolean wide = moveBytes(geometry) == 2;
+        for (int i = 0; i < count; i++) {
+            moves[i] = wide ? buffer.getShort() & 0xFFFF : buffer.get() & 0xFF;
+            if (moves[i] >= geometry.getCells()) throw new IOException("Corrupt game record: move " + moves[i]);
+        }
+        for (int i = 0; i < count; i++) evals[i] = (flags & EVALS) != 0 ? buffer.getShort() : 0;
+        for (int i = 0; i < count; i++) times[i] = (flags & TIMES) != 0 ? buffer.getInt() : 0;
+    }
+
+    /**
+     * Writes the encoded record, see {@link #writeTo(ByteBuffer)}
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        ByteBuffer buffer = scratch(encodedBytes());
+        writeTo(buffer);
+        out.write(buffer.array(), 0, buffer.position());
+    }
+
+    /**
+     * Reads the encoded record into this one, see {@link #readFrom(ByteBuffer)}
+     * @throws IOException if the record is corrupt
+     */
+    public void readFrom(DataInput in) throws IOException {
+        ByteBuffer buffer = scratch(HEADER_BYTES);
+        in.readFully(buffer.array(), 0, HEADER_BYTES);
+        int bytes = encodedBytes(buffer);
+        if (bytes > HEADER_BYTES) {
+            buffer = scratch(bytes);
+            in.readFully(buffer.array(), HEADER_BYTES, bytes - HEADER_BYTES);
+        }
+        readFrom(buffer);
+    }
+
+    /**
+     * @return the buffer of the record of the bytes, positioned at 0. Its header is kept when it grows
+     */
+    private ByteBuffer scratch(int bytes) {
+        if (scratch.length < bytes) scratch = Arrays.copyOf(scratch, Math.max(bytes, 2 * scratch.length));
+        return ByteBuffer.wrap(scratch);
+    }
+
+    static Game.Result result(int ordinal) throws IOException {
+        Game.Result[] results = Game.Result.values();
+        if (ordinal >= results.length) throw new IOException("Corrupt game record: result " + ordinal);
+        return results[ordinal];
+    }
+
+    static void check(Geometry geometry, int count) throws IOException {
+        if (count > geometry.getCells()) throw new IOException("Corrupt game record: " + count + " moves");
+    }
+}
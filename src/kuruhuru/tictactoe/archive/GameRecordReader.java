@@ -0,0 +1,91 @@
+package kuruhuru.tictactoe.archive;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * The class reads a stream of game records written by {@link GameRecordWriter}.
+ * The records are decoded one by one into a reusable record, so a file of any size
+ * is read in the memory of the buffer:
+ * <pre>
+ * GameRecord record = new GameRecord();
+ * while (reader.next(record)) record.replay(game);
+ * </pre>
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+public class GameRecordReader implements Closeable {
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+    private long records;
+
+    public GameRecordReader(InputStream in) throws IOException {
+        this(Channels.newChannel(in));
+    }
+
+    /**
+     * @throws IOException if the stream is not a stream of game records
+     */
+    public GameRecordReader(ReadableByteChannel channel) throws IOException {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(GameRecordWriter.BUFFER_BYTES);
+        buffer.flip();
+        if (!fill(6) || buffer.getInt() != GameRecordWriter.MAGIC)
+            throw new IOException("Not a stream of game records");
+        int version = buffer.getShort();
+        if (version != GameRecordWriter.VERSION)
+            throw new IOException("Unsupported version of game records: " + version);
+    }
+
+    /**
+     * Reads the next record
+     * @return false at the end of the stream
+     * @throws IOException if the stream is corrupt or truncated
+     */
+    public boolean next(GameRecord record) throws IOException {
+        if (!fill(GameRecord.HEADER_BYTES)) {
+            if (buffer.hasRemaining()) throw new EOFException("Truncated game record");
+            return false;
+        }
+        if (!fill(GameRecord.encodedBytes(buffer))) throw new EOFException("Truncated game record");
+        record.readFrom(buffer);
+        records++;
+        return true;
+    }
+
+    /**
+     * @return number of records read
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    /**
+     * Reads the channel until the buffer has the bytes
+     * @return false if the stream ends before
+     */
+    private boolean fill(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) return true;
+        buffer.compact();
+        try {
+            while (buffer.position() < bytes) {
+                if (channel.read(buffer) < 0) return false;
+            }
+            return true;
+        } finally {
+            buffer.flip();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,74 @@
+package kuruhuru.tictactoe.archive;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The class writes a stream of game records to a channel through a buffer.
+ * The stream starts with the magic and version (int, short), followed by the encoded records,
+ * see {@link GameRecord}.
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+public class GameRecordWriter implements Closeable {
+
+    static final int MAGIC = 0x54544752; // "TTGR"
+    static final int VERSION = 1;
+    static final int BUFFER_BYTES = 64 * 1024;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+    private long records;
+
+    public GameRecordWriter(OutputStream out) throws IOException {
+        this(Channels.newChannel(out));
+    }
+
+    public GameRecordWriter(WritableByteChannel channel) throws IOException {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(BUFFER_BYTES);
+        buffer.putInt(MAGIC).putShort((short) VERSION);
+    }
+
+    /**
+     * Writes the record
+     */
+    public void write(GameRecord record) throws IOException {
+        int bytes = record.encodedBytes();
+        if (buffer.remaining() < bytes) flush();
+        if (buffer.remaining() < bytes) throw new IOException("The record of " + bytes + " bytes is too long");
+
+        record.writeTo(buffer);
+        records++;
+    }
+
+    /**
+     * @return number of records written
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    /**
+     * Writes the buffered records to the channel
+     */
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
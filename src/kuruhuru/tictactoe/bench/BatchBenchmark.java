@@ -0,0 +1,53 @@
+package kuruhuru.tictactoe.bench;
+
+import kuruhuru.tictactoe.ai.BatchEvaluator;
+import kuruhuru.tictactoe.ai.Game;
+import kuruhuru.tictactoe.ai.Geometry;
+
+import java.util.Random;
+
+/**
+ * Measures throughput of the batch evaluation on random positions.
+ * Arguments: [positions] [width] [height] [line]
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+public class BatchBenchmark {
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int width = args.length > 1 ? Integer.parseInt(args[1]) : 15;
+        int height = args.length > 2 ? Integer.parseInt(args[2]) : 15;
+        int line = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        Geometry geometry = Geometry.of(width, height, line);
+        BatchEvaluator evaluator = new BatchEvaluator(geometry);
+        int words = evaluator.getWords();
+        long[] x = new long[count * words];
+        long[] o = new long[count * words];
+
+        // Positions of random games, every position of a game is stored
+        Random random = new Random(1);
+        Game game = new Game(geometry);
+        int[] moves = new int[geometry.getCells()];
+        Game.Player player = Game.Player.X;
+        for (int i = 0; i < count; i++) {
+            if (game.result().getResult() != Game.Result.UNFINISHED) {
+                game = new Game(geometry);
+                player = Game.Player.X;
+            }
+            game.getPosition(x, o, i * words);
+            int n = game.findPossibleMoves(moves);
+            game.makeMove(moves[random.nextInt(n)], player);
+            player = player.next();
+        }
+
+        for (int run = 0; run < 5; run++) {
+            BatchEvaluator.Results res = evaluator.evaluate(x, o, count);
+            System.out.printf("%d positions %dx%d line %d: %.1f ms, %d positions/sec%n", count,
+                    geometry.getWidth(), geometry.getHeight(), geometry.getLine(),
+                    res.getNanos() / 1e6, res.getPositionsPerSecond());
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package kuruhuru.tictactoe.bench;
+
+import kuruhuru.tictactoe.ai.Game;
+import kuruhuru.tictactoe.ai.Geometry;
+import kuruhuru.tictactoe.ai.Search;
+import kuruhuru.tictactoe.ai.TranspositionTable;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Plays a match between two engine configurations on one geometry and estimates their strength.
+ * Every random opening is played twice with the colours swapped, the games run in parallel,
+ * a game per thread at a time. The report gives wins, draws and losses of the first engine,
+ * the Elo difference with its 95% confidence interval and the speed of both engines.
+ * Arguments: width height line games openingPlies engineA engineB [threads]
+ * An engine is given as millisPerMove[:maxDepth[:tableMegabytes]], e.g. 100:64:16
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+public class SelfPlay {
+
+    public static final int OPENING_DISTANCE = 2; // the random opening moves are near the stones
+
+    /**
+     * Configuration of an engine
+     */
+    public static class Engine {
+        final long millis;
+        final int maxDepth;
+        final int tableMegabytes;
+
+        public Engine(long millis, int maxDepth, int tableMegabytes) {
+            this.millis = millis;
+            this.maxDepth = maxDepth;
+            this.tableMegabytes = tableMegabytes;
+        }
+
+        /**
+         * @param spec millisPerMove[:maxDepth[:tableMegabytes]]
+         */
+        public static Engine parse(String spec) {
+            String[] parts = spec.split(":");
+            return new Engine(Long.parseLong(parts[0]),
+                    parts.length > 1 ? Integer.parseInt(parts[1]) : Search.MAX_DEPTH,
+                    parts.length > 2 ? Integer.parseInt(parts[2]) : Search.TABLE_MEGABYTES);
+        }
+
+        @Override
+        public String toString() {
+            return millis + " ms, depth " + maxDepth + ", table " + tableMegabytes + " MB";
+        }
+    }
+
+    /**
+     * Statistics of a match from the first engine's side
+     */
+    public static class Result {
+        int wins;
+        int draws;
+        int losses;
+        final long[] moves = new long[2]; // moves of the engines A and B
+        final long[] nodes = new long[2];
+        final long[] nanos = new long[2];
+
+        void add(Result other) {
+            wins += other.wins;
+            draws += other.draws;
+            losses += other.losses;
+            for (int i = 0; i < 2; i++) {
+                moves[i] += other.moves[i];
+                nodes[i] += other.nodes[i];
+                nanos[i] += other.nanos[i];
+            }
+        }
+
+        public int getWins() {
+            return wins;
+        }
+
+        public int getDraws() {
+            return draws;
+        }
+
+        public int getLosses() {
+            return losses;
+        }
+
+        public int getGames() {
+            return wins + draws + losses;
+        }
+
+        /**
+         * @return score of the first engine, 0..1
+         */
+        public double getScore() {
+            return getGames() == 0 ? 0.5 : (wins + 0.5 * draws) / getGames();
+        }
+
+        /**
+         * @return Elo difference of the first engine over the second
+         */
+        public double getElo() {
+            return elo(getScore());
+        }
+
+        /**
+         * @return half-width of the 95% confidence interval of the score
+         */
+        public double getScoreMargin() {
+            int games = getGames();
+            if (games == 0) return 0;
+            double score = getScore();
+            double variance = (wins * (1 - score) * (1 - score) + draws * (0.5 - score) * (0.5 - score)
+                    + losses * score * score) / games;
+            return 1.96 * Math.sqrt(variance / games);
+        }
+
+        /**
+         * @param engine 0 for the first engine, 1 for the second
+         */
+        public long getNodesPerSecond(int engine) {
+            return nanos[engine] == 0 ? 0 : nodes[engine] * 1_000_000_000L / nanos[engine];
+        }
+
+        /**
+         * @param engine 0 for the first engine, 1 for the second
+         * @return average time per move in milliseconds
+         */
+        public double getMillisPerMove(int engine) {
+            return moves[engine] == 0 ? 0 : nanos[engine] / 1e6 / moves[engine];
+        }
+
+        /**
+         * @return Elo difference of the score, the score is clamped so that the difference is finite
+         */
+        static double elo(double score) {
+            score = Math.max(1e-3, Math.min(1 - 1e-3, score));
+            return -400 * Math.log10(1 / score - 1);
+        }
+    }
+
+    private final Geometry geometry;
+    private final Engine[] engines;
+    private final int openingPlies;
+    private final int threads;
+
+    public SelfPlay(Geometry geometry, Engine a, Engine b, int openingPlies, int threads) {
+        this.geometry = geometry;
+        this.engines = new Engine[]{a, b};
+        this.openingPlies = openingPlies;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Plays the match
+     * @param pairs number of openings, every opening is played by both colours
+     * @param seed seed of the random openings
+     */
+    public Result play(int pairs, long seed) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ThreadLocal<Player> players = ThreadLocal.withInitial(Player::new);
+        try {
+            ArrayList<Future<Result>> futures = new ArrayList<>(pairs);
+            for (int i = 0; i < pairs; i++) {
+                long pairSeed = seed + i;
+                futures.add(pool.submit(() -> players.get().playPair(new Random(pairSeed))));
+            }
+            Result res = new Result();
+            for (Future<Result> future : futures) res.add(future.get());
+            return res;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * The game and the searches of a thread
+     */
+    private class Player {
+        final Game game = new Game(geometry);
+        final Search[] searches = new Search[2];
+        final TranspositionTable[] tables = new TranspositionTable[2];
+        final int[] moves = new int[geometry.getCells()];
+
+        Player() {
+            for (int i = 0; i < 2; i++) {
+                tables[i] = new TranspositionTable(engines[i].tableMegabytes);
+                searches[i] = new Search(game, tables[i]);
+            }
+        }
+
+        /**
+         * Plays the random opening twice, the first engine plays the crosses in the first game
+         */
+        Result playPair(Random random) {
+            int[] opening = new int[openingPlies];
+            game.clear();
+            Game.Player player = Game.Player.X;
+            int plies = 0;
+            while (plies < openingPlies && game.result().getResult() == Game.Result.UNFINISHED) {
+                int n = game.findCandidateMoves(OPENING_DISTANCE, moves);
+                opening[plies] = moves[random.nextInt(n)];
+                game.makeMove(opening[plies++], player);
+                player = player.next();
+            }
+
+            Result res = new Result();
+            for (int first = 0; first < 2; first++) {
+                game.clear();
+                for (TranspositionTable table : tables) table.clear();
+                player = Game.Player.X;
+                for (int i = 0; i < plies; i++) {
+                    game.makeMove(opening[i], player);
+                    player = player.next();
+                }
+                Game.Result result = playOut(player, plies % 2 == 0 ? first : 1 - first, res);
+                Game.Result winA = (first == 0) ? Game.Result.X : Game.Result.O;
+                if (result == Game.Result.DRAW) res.draws++;
+                else if (result == winA) res.wins++;
+                else res.losses++;
+            }
+            return res;
+        }
+
+        /**
+         * Plays the game to the end
+         * @param engine the engine to move
+         */
+        private Game.Result playOut(Game.Player player, int engine, Result res) {
+            for (Search.SearchResult move; ; ) {
+                Game.Result result = game.result().getResult();
+                if (result != Game.Result.UNFINISHED) return result;
+                move = searches[engine].search(player, engines[engine].millis, engines[engine].maxDepth);
+                game.makeMove(move.getMove(), player);
+                res.moves[engine]++;
+                res.nodes[engine] += move.getNodes();
+                res.nanos[engine] += move.getNanos();
+                player = player.next();
+                engine = 1 - engine;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 7) {
+            System.out.println("Usage: SelfPlay width height line games openingPlies engineA engineB [threads]");
+            System.out.println("Engine: millisPerMove[:maxDepth[:tableMegabytes]]");
+            return;
+        }
+        Geometry geometry = Geometry.of(Integer.parseInt(args[0]), Integer.parseInt(args[1]),
+                Integer.parseInt(args[2]));
+        int games = Integer.parseInt(args[3]);
+        Engine a = Engine.parse(args[5]);
+        Engine b = Engine.parse(args[6]);
+        int threads = args.length > 7 ? Integer.parseInt(args[7]) : Runtime.getRuntime().availableProcessors();
+        SelfPlay match = new SelfPlay(geometry, a, b, Integer.parseInt(args[4]), threads);
+
+        long start = System.nanoTime();
+        Result res = match.play((games + 1) / 2, 1);
+        double score = res.getScore();
+        double margin = res.getScoreMargin();
+        System.out.printf("A: %s%nB: %s%n", a, b);
+        System.out.printf("%d games in %.1f s: +%d =%d -%d, score %.3f%n", res.getGames(),
+                (System.nanoTime() - start) / 1e9, res.getWins(), res.getDraws(), res.getLosses(), score);
+        System.out.printf("Elo %+.1f, 95%% interval [%+.1f, %+.1f]%n", res.getElo(),
+                Result.elo(score - margin), Result.elo(score + margin));
+        for (int i = 0; i < 2; i++) {
+            System.out.printf("%s: %d nodes/sec, %.2f ms/move%n", i == 0 ? "A" : "B",
+                    res.getNodesPerSecond(i), res.getMillisPerMove(i));
+        }
+    }
+}
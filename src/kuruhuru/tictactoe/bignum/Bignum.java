@@ -2,6 +2,7 @@ package kuruhuru.tictactoe.bignum;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.function.IntConsumer;
 
 /**
  * The class implements a set of (mostly bitwise) operations on 256 bits (4 * 64, 4 * long).
@@ -104,15 +105,17 @@ public class Bignum {
     }
 
     /**
+     * Compares the numbers as unsigned
      * @param bignum another Bignum to compare
      * @return Compare
      */
     public Compare compare(Bignum bignum) {
         for (int i = num.length - 1; i >= 0; i--) {
-            if (num[i] > bignum.num[i]) return Compare.GREATER;
-            if (num[i] < bignum.num[i]) return Compare.LESS;
+            int cmp = Long.compareUnsigned(num[i], bignum.num[i]);
+            if (cmp > 0) return Compare.GREATER;
+            if (cmp < 0) return Compare.LESS;
         }
-        return Compare.LESS;
+        return Compare.EQUAL;
     }
 
     /**
@@ -166,6 +169,75 @@ public class Bignum {
         return this;
     }
 
+    /**
+     * @return index of the lowest set bit, -1 if Bignum is zero
+     */
+    public int lowestSetBit() {
+        for (int i = 0; i < num.length; i++)
+            if (num[i] != 0) return i * 64 + Long.numberOfTrailingZeros(num[i]);
+        return -1;
+    }
+
+    /**
+     * @return number of set bits
+     */
+    public int bitCount() {
+        int res = 0;
+        for (long word : num)
+            res += Long.bitCount(word);
+        return res;
+    }
+
+    /**
+     * Iterating over the set bits does not allocate:
+     * for (int i = b.nextSetBit(0); i >= 0; i = b.nextSetBit(i + 1)) { ... }
+     * @return index of the first set bit starting from the index, -1 if there is none
+     */
+    public int nextSetBit(int from) {
+        if (from < 0) from = 0;
+        int i = from >>> 6;
+        if (i >= num.length) return -1;
+        long word = num[i] & (-1L << from);
+        while (word == 0) {
+            if (++i == num.length) return -1;
+            word = num[i];
+        }
+        return i * 64 + Long.numberOfTrailingZeros(word);
+    }
+
+    /**
+     * Calls the action with the index of every set bit in ascending order
+     */
+    public void forEachSetBit(IntConsumer action) {
+        for (int i = 0; i < num.length; i++) {
+            for (long word = num[i]; word != 0; word &= word - 1)
+                action.accept(i * 64 + Long.numberOfTrailingZeros(word));
+        }
+    }
+
+    /**
+     * @return true if the bit with the index is set
+     */
+    public boolean testBit(int index) {
+        return (num[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Sets the bit with the index
+     */
+    public Bignum setBit(int index) {
+        num[index >>> 6] |= 1L << index;
+        return this;
+    }
+
+    /**
+     * Clears the bit with the index
+     */
+    public Bignum clearBit(int index) {
+        num[index >>> 6] &= ~(1L << index);
+        return this;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -180,66 +252,41 @@ public class Bignum {
     }
 
     /**
-     * Bitwise shift
+     * Bitwise shift. Words are moved at once, the bits crossing a word boundary are carried
+     * by a double shift, which is zero for the shift by a whole number of words, so no branch
+     * per word is needed
      *
      * @param shift positive means shift to left, negative means shift to right
      * @return shifted bignum
      */
     public Bignum bitwiseShift(int shift) {
+        int n = num.length;
         if (shift > 0) {
-            int gaps = shift / 64;
-            if (gaps >= num.length) { // becomes zero
-                for (int i = 0; i < num.length; i++) {
-                    num[i] = 0;
-                }
-            } else {
-                shift %= 64;
-                for (int i = num.length-1; i >= 0; i--) {
-                    if (i < gaps) {
-                        num[i] = 0;
-                    } else {
-                        num[i] = num[i - gaps];
-                    }
-                }
-                if (shift != 0) {
-                    for (int i = num.length - 1; i >= gaps; i--) {
-                        if (i == gaps) {
-                            num[i] <<= shift;
-                        } else {
-                            num[i] <<= shift;
-                            num[i] |= num[i - 1] >> (64 - shift);
-                        }
-                    }
-                }
+            int gaps = shift >>> 6;
+            if (gaps >= n) {
+                Arrays.fill(num, 0);
+                return this;
             }
+            int left = shift & 63;
+            int right = 63 - left;
+            for (int i = n - 1; i > gaps; i--)
+                num[i] = (num[i - gaps] << left) | (num[i - gaps - 1] >>> 1 >>> right);
+            num[gaps] = num[0] << left;
+            Arrays.fill(num, 0, gaps, 0);
         } else if (shift < 0) {
             shift = -shift;
-            int gaps = shift / 64;
-            if (gaps >= num.length) {// becomes zero
-                for (int i = 0; i < num.length; i++) {
-                    num[i] = 0;
-                }
-            } else {
-                shift %= 64;
-                for (int i = 0; i < num.length; i++) {
-                    if (i > num.length - 1 - gaps) {
-                        num[i] = 0;
-                    } else {
-                        num[i] = num[i + gaps];
-                    }
-                }
-                if (shift != 0) {
-                    for (int i = 0; i < num.length - gaps; i++) {
-                        if (i == num.length - 1 - gaps) {
-                            num[i] >>>= shift;
-                        } else {
-                            num[i] >>>= shift;
-                            num[i] |= num[i + 1] << (64 - shift);
-                        }
-                    }
-                }
+            int gaps = shift >>> 6;
+            if (gaps >= n) {
+                Arrays.fill(num, 0);
+                return this;
             }
-
+            int right = shift & 63;
+            int left = 63 - right;
+            int last = n - 1 - gaps;
+            for (int i = 0; i < last; i++)
+                num[i] = (num[i + gaps] >>> right) | (num[i + gaps + 1] << 1 << left);
+            num[last] = num[n - 1] >>> right;
+            Arrays.fill(num, last + 1, n, 0);
         }
         return this;
     }
@@ -249,15 +296,10 @@ public class Bignum {
      * @return a list of Bignum objects where only one bit is set
      */
     public static ArrayList<Bignum> getBits(Bignum big) {
-        ArrayList<Bignum> res = new ArrayList<>(big.num.length);
-        Bignum bits = new Bignum(big);
-        while (!bits.isZero()) {
-            Bignum move = new Bignum(bits);
-            bits.bitwiseAND(new Bignum(bits).minusOne());
-            move.bitwiseXOR(bits);
-            res.add(move);
+        ArrayList<Bignum> res = new ArrayList<>(big.bitCount());
+        for (int i = big.nextSetBit(0); i >= 0; i = big.nextSetBit(i + 1)) {
+            res.add(new Bignum(new long[big.num.length]).setBit(i));
         }
-
         return res;
     }
 }
@@ -0,0 +1,292 @@
+package kuruhuru.tictactoe.bignum;
+
+import java.util.Arrays;
+
+/**
+ * The class implements a fixed-width set of bits for the game board.
+ * Unlike {@link Bignum}, the operations never allocate: every operation writes
+ * its result into this bitboard, so the bitboards can be created once and reused
+ * in the hot paths of the game and search.
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+public final class Bitboard {
+
+    final long[] words;
+
+    /**
+     * Creates empty bitboard
+     * @param bits number of bits
+     */
+    public Bitboard(int bits) {
+        words = new long[words(bits)];
+    }
+
+    public Bitboard(Bitboard bitboard) {
+        words = bitboard.words.clone();
+    }
+
+    /**
+     * @return number of bits the bitboard can hold
+     */
+    public int capacity() {
+        return words.length << 6;
+    }
+
+    /**
+     * this = bitboard
+     */
+    public Bitboard copy(Bitboard bitboard) {
+        System.arraycopy(bitboard.words, 0, words, 0, words.length);
+        return this;
+    }
+
+    /**
+     * this = bignum, extra words of the bignum are ignored
+     */
+    public Bitboard copy(Bignum bignum) {
+        int n = Math.min(words.length, bignum.num.length);
+        System.arraycopy(bignum.num, 0, words, 0, n);
+        Arrays.fill(words, n, words.length, 0);
+        return this;
+    }
+
+    /**
+     * this = words of the array starting from the offset
+     */
+    public Bitboard copy(long[] src, int offset) {
+        System.arraycopy(src, offset, words, 0, words.length);
+        return this;
+    }
+
+    /**
+     * Writes the words into the array starting from the offset
+     */
+    public void copyTo(long[] dst, int offset) {
+        System.arraycopy(words, 0, dst, offset, words.length);
+    }
+
+    /**
+     * @return number of long words holding the bits
+     */
+    public int getWords() {
+        return words.length;
+    }
+
+    /**
+     * @return the word with the bits 64 * index .. 64 * index + 63
+     */
+    public long getWord(int index) {
+        return words[index];
+    }
+
+    /**
+     * @return number of long words needed for the bits
+     */
+    public static int words(int bits) {
+        return Math.max(1, (bits + 63) >>> 6);
+    }
+
+    /**
+     * @return a new Bignum with the same bits
+     */
+    public Bignum toBignum() {
+        return new Bignum(words.clone());
+    }
+
+    public Bitboard clear() {
+        Arrays.fill(words, 0);
+        return this;
+    }
+
+    /**
+     * this = a AND b
+     */
+    public Bitboard and(Bitboard a, Bitboard b) {
+        for (int i = 0; i < words.length; i++)
+            words[i] = a.words[i] & b.words[i];
+        return this;
+    }
+
+    /**
+     * this = a AND NOT b
+     */
+    public Bitboard andNot(Bitboard a, Bitboard b) {
+        for (int i = 0; i < words.length; i++)
+            words[i] = a.words[i] & ~b.words[i];
+        return this;
+    }
+
+    /**
+     * this = a OR b
+     */
+    public Bitboard or(Bitboard a, Bitboard b) {
+        for (int i = 0; i < words.length; i++)
+            words[i] = a.words[i] | b.words[i];
+        return this;
+    }
+
+    /**
+     * this = a XOR b
+     */
+    public Bitboard xor(Bitboard a, Bitboard b) {
+        for (int i = 0; i < words.length; i++)
+            words[i] = a.words[i] ^ b.words[i];
+        return this;
+    }
+
+    /**
+     * this = a shifted left (to the higher bits) by n bits. The bits shifted out of the capacity are lost.
+     * The bits crossing a word boundary are carried by a double shift, so there is no branch per word
+     */
+    public Bitboard shiftLeft(Bitboard a, int n) {
+        int wordShift = n >>> 6;
+        int left = n & 63;
+        int right = 63 - left;
+        int last = words.length - 1;
+        if (wordShift > last) return clear();
+        for (int i = last; i > wordShift; i--)
+            words[i] = (a.words[i - wordShift] << left) | (a.words[i - wordShift - 1] >>> 1 >>> right);
+        words[wordShift] = a.words[0] << left;
+        Arrays.fill(words, 0, wordShift, 0);
+        return this;
+    }
+
+    /**
+     * this = a shifted right (to the lower bits) by n bits
+     */
+    public Bitboard shiftRight(Bitboard a, int n) {
+        int wordShift = n >>> 6;
+        int right = n & 63;
+        int left = 63 - right;
+        int last = words.length - 1 - wordShift;
+        if (last < 0) return clear();
+        for (int i = 0; i < last; i++)
+            words[i] = (a.words[i + wordShift] >>> right) | (a.words[i + wordShift + 1] << 1 << left);
+        words[last] = a.words[last + wordShift] >>> right;
+        Arrays.fill(words, last + 1, words.length, 0);
+        return this;
+    }
+
+    public boolean isZero() {
+        for (long word : words)
+            if (word != 0) return false;
+        return true;
+    }
+
+    /**
+     * @return true if all bits of the mask are set
+     */
+    public boolean containsAll(Bitboard mask) {
+        for (int i = 0; i < words.length; i++)
+            if ((words[i] & mask.words[i]) != mask.words[i]) return false;
+        return true;
+    }
+
+    /**
+     * @return true if the bitboards have a common bit
+     */
+    public boolean intersects(Bitboard bitboard) {
+        for (int i = 0; i < words.length; i++)
+            if ((words[i] & bitboard.words[i]) != 0) return true;
+        return false;
+    }
+
+    /**
+     * @return number of set bits
+     */
+    public int bitCount() {
+        int count = 0;
+        for (long word : words)
+            count += Long.bitCount(word);
+        return count;
+    }
+
+    /**
+     * @return number of set bits in a AND b
+     */
+    public static int bitCountAnd(Bitboard a, Bitboard b) {
+        int count = 0;
+        for (int i = 0; i < a.words.length; i++)
+            count += Long.bitCount(a.words[i] & b.words[i]);
+        return count;
+    }
+
+    /**
+     * @return index of the lowest set bit, -1 if the bitboard is zero
+     */
+    public int lowestSetBit() {
+        for (int i = 0; i < words.length; i++)
+            if (words[i] != 0) return (i << 6) + Long.numberOfTrailingZeros(words[i]);
+        return -1;
+    }
+
+    /**
+     * @return index of the first set bit starting from the index, -1 if there is none
+     */
+    public int nextSetBit(int from) {
+        int i = from >>> 6;
+        if (i >= words.length) return -1;
+        long word = words[i] & (-1L << from);
+        while (true) {
+            if (word != 0) return (i << 6) + Long.numberOfTrailingZeros(word);
+            if (++i == words.length) return -1;
+            word = words[i];
+        }
+    }
+
+    public boolean testBit(int index) {
+        return (words[index >>> 6] & (1L << index)) != 0;
+    }
+
+    public Bitboard setBit(int index) {
+        words[index >>> 6] |= 1L << index;
+        return this;
+    }
+
+    public Bitboard clearBit(int index) {
+        words[index >>> 6] &= ~(1L << index);
+        return this;
+    }
+
+    public Bitboard flipBit(int index) {
+        words[index >>> 6] ^= 1L << index;
+        return this;
+    }
+
+    /**
+     * Writes indexes of the set bits into the array
+     * @return number of indexes written
+     */
+    public int toIndexes(int[] dst) {
+        int n = 0;
+        for (int i = 0; i < words.length; i++) {
+            long word = words[i];
+            while (word != 0) {
+                dst[n++] = (i << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return Arrays.equals(words, ((Bitboard) o).words);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(words);
+    }
+
+    @Override
+    public String toString() {
+        return "Bitboard{" +
+                "words=" + Arrays.toString(words) +
+                '}';
+    }
+}
@@ -0,0 +1,96 @@
+package kuruhuru.tictactoe.metrics;
+
+import java.util.Arrays;
+
+/**
+ * The class implements a log-linear histogram of non-negative values in the manner of HdrHistogram:
+ * every power of two is split into SUB_BUCKETS linear buckets, so a value is kept
+ * with the relative error below 1 / SUB_BUCKETS over the whole range of long.
+ * The histogram is not thread-safe: it is written by one thread and merged into snapshots.
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+public class Histogram {
+
+    static final int SUB_BITS = 5;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+    static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long sum;
+    private long max;
+
+    /**
+     * @return index of the bucket of the value
+     */
+    static int index(long value) {
+        if (value < SUB_BUCKETS) return (int) Math.max(value, 0);
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @return the lowest value of the bucket
+     */
+    static long lowest(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        return (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+    }
+
+    public void record(long value) {
+        counts[index(value)]++;
+        count++;
+        sum += value;
+        if (value > max) max = value;
+    }
+
+    /**
+     * Adds the values of the other histogram to this one
+     */
+    public void add(Histogram other) {
+        for (int i = 0; i < BUCKETS; i++) counts[i] += other.counts[i];
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    public void clear() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @param percent percentile, 0..100
+     * @return the lowest value of the bucket holding the percentile, 0 if the histogram is empty
+     */
+    public long percentile(double percent) {
+        long rank = (long) Math.ceil(percent / 100 * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) return Math.min(lowest(i), max);
+        }
+        return max;
+    }
+}
@@ -0,0 +1,158 @@
+package kuruhuru.tictactoe.metrics;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * The class holds the probes of the hot paths of the AI.
+ * The instrumentation is switched on by the system property tictactoe.metrics=true,
+ * the allocation measurement additionally by tictactoe.metrics.allocations=true.
+ * The switches are constants, so with the instrumentation off the JIT compiler removes
+ * the measuring code of the callers, guarded by if (Metrics.ENABLED), entirely.
+ * The metrics are dumped by toJson() or exposed via JMX by register().
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+public final class Metrics {
+
+    public static final boolean ENABLED = Boolean.getBoolean("tictactoe.metrics");
+    public static final boolean ALLOCATIONS = ENABLED && Boolean.getBoolean("tictactoe.metrics.allocations");
+
+    public static final Probe RESULT = new Probe("Game.result");
+    public static final Probe MAKE_MOVE = new Probe("Game.makeMove");
+    public static final Probe UNDO_MOVE = new Probe("Game.undoMove");
+    public static final Probe FIND_POSSIBLE_MOVES = new Probe("Game.findPossibleMoves");
+    public static final Probe SORT_POSSIBLE_MOVES = new Probe("Game.sortPossibleMoves");
+    public static final Probe SEARCH = new Probe("Search.search");
+    public static final Probe THREAT_SEARCH = new Probe("ThreatSearch.solve");
+
+    private static final Probe[] PROBES = {RESULT, MAKE_MOVE, UNDO_MOVE, FIND_POSSIBLE_MOVES,
+            SORT_POSSIBLE_MOVES, SEARCH, THREAT_SEARCH};
+
+    public static final String OBJECT_NAME = "kuruhuru.tictactoe:type=Metrics";
+
+    private static final com.sun.management.ThreadMXBean THREADS = ALLOCATIONS ? threads() : null;
+
+    private Metrics() {
+    }
+
+    /**
+     * @return bytes allocated by the current thread, 0 if the runtime does not count them
+     */
+    static long allocatedBytes() {
+        return THREADS == null ? 0 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean threads() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean res = (com.sun.management.ThreadMXBean) threads;
+            if (res.isThreadAllocatedMemorySupported()) {
+                res.setThreadAllocatedMemoryEnabled(true);
+                return res;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return snapshots of all probes
+     */
+    public static Probe.Snapshot[] snapshot() {
+        Probe.Snapshot[] res = new Probe.Snapshot[PROBES.length];
+        for (int i = 0; i < PROBES.length; i++) res[i] = PROBES[i].snapshot();
+        return res;
+    }
+
+    public static void reset() {
+        for (Probe probe : PROBES) probe.reset();
+    }
+
+    /**
+     * @return the metrics of all probes as a JSON object, latencies in nanoseconds
+     */
+    public static String toJson() {
+        StringBuilder res = new StringBuilder();
+        res.append("{\"enabled\":").append(ENABLED).append(",\"allocations\":").append(ALLOCATIONS)
+                .append(",\"probes\":[");
+        Probe.Snapshot[] snapshots = snapshot();
+        for (int i = 0; i < snapshots.length; i++) {
+            Probe.Snapshot s = snapshots[i];
+            Histogram h = s.getLatency();
+            if (i > 0) res.append(',');
+            res.append(String.format(Locale.ROOT,
+                    "{\"name\":\"%s\",\"count\":%d,\"meanNanos\":%.1f,\"p50Nanos\":%d,\"p90Nanos\":%d,"
+                            + "\"p99Nanos\":%d,\"maxNanos\":%d,\"allocatedBytes\":%d}",
+                    s.getName(), h.getCount(), h.getMean(), h.percentile(50), h.percentile(90),
+                    h.percentile(99), h.getMax(), s.getBytes()));
+        }
+        return res.append("]}").toString();
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server under OBJECT_NAME
+     * @throws IllegalStateException if the registration fails
+     */
+    public static void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            throw new IllegalStateException("Can not register " + OBJECT_NAME, e);
+        }
+    }
+
+    private static class Bean implements MetricsMXBean {
+
+        @Override
+        public boolean isEnabled() {
+            return ENABLED;
+        }
+
+        @Override
+        public boolean isAllocations() {
+            return ALLOCATIONS;
+        }
+
+        @Override
+        public Map<String, Long> getCounts() {
+            return collect(Probe.Snapshot::getCount);
+        }
+
+        @Override
+        public Map<String, Long> getMeanNanos() {
+            return collect(s -> Math.round(s.getLatency().getMean()));
+        }
+
+        @Override
+        public Map<String, Long> getP99Nanos() {
+            return collect(s -> s.getLatency().percentile(99));
+        }
+
+        @Override
+        public Map<String, Long> getAllocatedBytes() {
+            return collect(Probe.Snapshot::getBytes);
+        }
+
+        @Override
+        public String getJson() {
+            return toJson();
+        }
+
+        @Override
+        public void reset() {
+            Metrics.reset();
+        }
+
+        private static Map<String, Long> collect(ToLongFunction<Probe.Snapshot> value) {
+            Map<String, Long> res = new LinkedHashMap<>();
+            for (Probe.Snapshot s : snapshot()) res.put(s.getName(), value.applyAsLong(s));
+            return res;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package kuruhuru.tictactoe.metrics;
+
+import java.util.Map;
+
+/**
+ * The management interface of the metrics, registered by Metrics.register()
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+public interface MetricsMXBean {
+
+    boolean isEnabled();
+
+    boolean isAllocations();
+
+    /**
+     * @return number of calls by probe name
+     */
+    Map<String, Long> getCounts();
+
+    /**
+     * @return mean latency in nanoseconds by probe name
+     */
+    Map<String, Long> getMeanNanos();
+
+    /**
+     * @return 99th percentile of latency in nanoseconds by probe name
+     */
+    Map<String, Long> getP99Nanos();
+
+    /**
+     * @return allocated bytes by probe name
+     */
+    Map<String, Long> getAllocatedBytes();
+
+    /**
+     * @return all metrics as JSON
+     */
+    String getJson();
+
+    void reset();
+}
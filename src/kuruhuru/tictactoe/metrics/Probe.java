@@ -0,0 +1,173 @@
+package kuruhuru.tictactoe.metrics;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The class measures calls of one operation: their number, latency histogram
+ * and, if Metrics.ALLOCATIONS is set, the bytes allocated by the calls.
+ * Every thread records into its own histogram without locks or atomic operations;
+ * the histograms of all threads are merged by snapshot(). The histograms of the terminated threads
+ * are folded into one, when a thread starts recording or the probe is snapshot,
+ * so the threads of the pools, which come and go, do not accumulate histograms.
+ * The calls are measured as
+ * <pre>
+ * long start = probe.start();
+ * ...
+ * probe.stop(start);
+ * </pre>
+ * and the callers skip both when Metrics.ENABLED is false.
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+public class Probe {
+
+    private static final int MAX_NESTING = 16; // depth of recursive calls with measured allocation
+
+    private final String name;
+    private final ConcurrentLinkedQueue<Recorder> recorders = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<Recorder> recorder = ThreadLocal.withInitial(this::register);
+    // records of the terminated threads, guarded by the probe
+    private final Histogram retiredLatency = new Histogram();
+    private long retiredBytes;
+
+    Probe(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Starts a call
+     * @return the start time to pass to stop()
+     */
+    public long start() {
+        if (Metrics.ALLOCATIONS) {
+            Recorder r = recorder.get();
+            if (r.depth < MAX_NESTING) r.allocated[r.depth] = Metrics.allocatedBytes();
+            r.depth++;
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Completes the call started at the time
+     */
+    public void stop(long start) {
+        long nanos = System.nanoTime() - start;
+        Recorder r = recorder.get();
+        r.latency.record(nanos);
+        if (Metrics.ALLOCATIONS && r.depth > 0) {
+            r.depth--;
+            if (r.depth < MAX_NESTING) r.bytes += Metrics.allocatedBytes() - r.allocated[r.depth];
+        }
+    }
+
+    /**
+     * Merges the records of all threads. The records being written concurrently may be missed
+     */
+    public synchronized Snapshot snapshot() {
+        retire();
+        Snapshot res = new Snapshot(name);
+        res.latency.add(retiredLatency);
+        res.bytes = retiredBytes;
+        for (Recorder r : recorders) {
+            res.latency.add(r.latency);
+            res.bytes += r.bytes;
+        }
+        return res;
+    }
+
+    /**
+     * Clears the records of all threads. Should be called when the probe is not used
+     */
+    public synchronized void reset() {
+        retire();
+        retiredLatency.clear();
+        retiredBytes = 0;
+        for (Recorder r : recorders) {
+            r.latency.clear();
+            r.bytes = 0;
+        }
+    }
+
+    /**
+     * @return the recorder of the current thread
+     */
+    private synchronized Recorder register() {
+        retire();
+        Recorder res = new Recorder(Thread.currentThread());
+        recorders.add(res);
+        return res;
+    }
+
+    /**
+     * Folds the records of the terminated threads into the retired ones
+     */
+    private void retire() {
+        for (Iterator<Recorder> i = recorders.iterator(); i.hasNext(); ) {
+            Recorder r = i.next();
+            Thread owner = r.owner.get();
+            // a terminated thread does not record, isAlive() makes its records visible
+            if (owner == null || !owner.isAlive()) {
+                retiredLatency.add(r.latency);
+                retiredBytes += r.bytes;
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Records of one thread
+     */
+    private static class Recorder {
+        final WeakReference<Thread> owner; // the recorder does not keep its thread
+        final Histogram latency = new Histogram();
+        final long[] allocated = new long[MAX_NESTING]; // allocated bytes at the starts of nested calls
+        int depth;
+        long bytes;
+
+        Recorder(Thread owner) {
+            this.owner = new WeakReference<>(owner);
+        }
+    }
+
+    /**
+     * Merged records of the probe
+     */
+    public static class Snapshot {
+        final String name;
+        final Histogram latency = new Histogram();
+        long bytes;
+
+        Snapshot(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return latencies of the calls in nanoseconds
+         */
+        public Histogram getLatency() {
+            return latency;
+        }
+
+        public long getCount() {
+            return latency.getCount();
+        }
+
+        /**
+         * @return bytes allocated by the calls, 0 if the allocations are not measured
+         */
+        public long getBytes() {
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,515 @@
+package kuruhuru.tictactoe.server;
+
+import kuruhuru.tictactoe.ai.Game;
+import kuruhuru.tictactoe.ai.Geometry;
+import kuruhuru.tictactoe.ai.OpeningBook;
+import kuruhuru.tictactoe.ai.Ponderer;
+import kuruhuru.tictactoe.ai.Search;
+import kuruhuru.tictactoe.ai.TranspositionTable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The class implements a game server hosting many matches against the computer.
+ * Clients talk a line protocol over TCP, one request per line, every request is answered by one line:
+ * <pre>
+ * NEW width height line [PONDER] -&gt; OK id
+ * PLAY id row col deadlineMillis -&gt; MOVE id row col result
+ * GO id deadlineMillis           -&gt; MOVE id row col result
+ * END id                         -&gt; OK id
+ * STATS                          -&gt; STATS sessions=.. queued=.. running=.. moves=.. ponderHits=.. ponderMisses=..
+ *                                         p50=.. p90=.. p99=.. max=..
+ * QUIT                           -&gt; the connection is closed
+ * </pre>
+ * PLAY makes the client's move and then the computer answers; if the client's move finishes the game,
+ * the answer is MOVE id -1 -1 result. GO asks the computer to move for the side to move.
+ * The result is UNFINISHED, X, O or DRAW; the latencies in STATS are in milliseconds.
+ * The ponder hits and misses count the client's moves answered by the pondering or searched anew.
+ * A failed request is answered by ERROR message.
+ * <p>
+ * The connections are served by one selector thread, which parses requests and writes answers.
+ * The moves of the computer are searched by the executor: a virtual thread per request
+ * when the runtime has them, otherwise a pool of a thread per processor.
+ * The deadline of a request includes its time in the queue: the search gets the time left.
+ * The sessions of one geometry share one transposition table and the opening book, if the server
+ * has one of the geometry, see {@link #addOpeningBook(OpeningBook)}. A session without pondering
+ * keeps only its game: a request takes a search of the geometry from the pool of the idle ones,
+ * sets its game to the session's position and returns it after the move.
+ * A session created with PONDER searches on the client's time: after the computer's move
+ * the answer to the predicted client's move is searched until the next request. The pondering
+ * sessions share a pool of a thread per processor.
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+public class GameServer implements Closeable {
+
+    public static final int MAX_LINE = 256;          // maximal length of a request
+    public static final int LATENCY_SAMPLES = 8192;  // number of the last moves in the latency percentiles
+
+    private final int maxSessions;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ExecutorService executor;
+    private final ExecutorService ponderPool;
+    private final Thread selectorThread;
+
+    private final ConcurrentHashMap<Long, Session> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Geometry, TranspositionTable> tables = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Geometry, ConcurrentLinkedQueue<Searcher>> searchers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Geometry, OpeningBook> books = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final AtomicInteger queued = new AtomicInteger();  // searches waiting for a thread
+    private final AtomicInteger running = new AtomicInteger(); // searches in progress
+    private final AtomicLong ponderHits = new AtomicLong();
+    private final AtomicLong ponderMisses = new AtomicLong();
+    private final LatencyStats latencies = new LatencyStats(LATENCY_SAMPLES);
+    private volatile boolean closed;
+
+    /**
+     * Starts the server
+     * @param port the port to listen, 0 for any free port
+     * @param maxSessions limit of the simultaneous sessions
+     */
+    public GameServer(int port, int maxSessions) throws IOException {
+        this.maxSessions = maxSessions;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        this.executor = newExecutor();
+        this.ponderPool = Ponderer.newPool(Runtime.getRuntime().availableProcessors());
+        this.selectorThread = new Thread(this::run, "game-server-selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /**
+     * @return executor of a virtual thread per task, a fixed pool if the runtime has no virtual threads
+     */
+    static ExecutorService newExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+                Thread thread = new Thread(r, "game-server-search");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Adds the opening book of its geometry, replacing the previous one. The sessions created later
+     * answer the positions of the book by its moves. The book is closed with the server
+     */
+    public void addOpeningBook(OpeningBook book) {
+        books.put(book.getGeometry(), book);
+    }
+
+    /**
+     * @return number of the open sessions
+     */
+    public int getSessions() {
+        return sessions.size();
+    }
+
+    /**
+     * @return number of the searches waiting for a thread
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * @return number of the searches in progress
+     */
+    public int getRunning() {
+        return running.get();
+    }
+
+    /**
+     * @return latencies of the computer's moves from the request to the answer
+     */
+    public LatencyStats getLatencies() {
+        return latencies;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            selectorThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdownNow();
+        ponderPool.shutdownNow();
+        for (SelectionKey key : selector.keys()) key.channel().close();
+        selector.close();
+        for (OpeningBook book : books.values()) book.close();
+    }
+
+    /**
+     * The loop of the selector thread
+     */
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select();
+                for (Connection connection; (connection = pendingWrites.poll()) != null; ) {
+                    if (connection.key.isValid())
+                        connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) accept();
+                        if (key.isValid() && key.isReadable()) read((Connection) key.attachment());
+                        if (key.isValid() && key.isWritable()) write((Connection) key.attachment());
+                    } catch (IOException | CancelledKeyException e) {
+                        disconnect((Connection) key.attachment());
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            if (!closed) e.printStackTrace();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    private void read(Connection connection) throws IOException {
+        ByteBuffer buffer = connection.input;
+        if (connection.channel.read(buffer) < 0) {
+            disconnect(connection);
+            return;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b == '\n') {
+                handle(connection, connection.line.toString().trim());
+                connection.line.setLength(0);
+            } else if (connection.line.length() >= MAX_LINE) {
+                connection.send("ERROR request too long");
+                connection.closing = true;
+                break;
+            } else {
+                connection.line.append((char) (b & 0xFF));
+            }
+        }
+        buffer.clear();
+    }
+
+    private void write(Connection connection) throws IOException {
+        synchronized (connection) {
+            while (!connection.output.isEmpty()) {
+                ByteBuffer buffer = connection.output.peek();
+                connection.channel.write(buffer);
+                if (buffer.hasRemaining()) return;
+                connection.output.poll();
+            }
+            connection.key.interestOps(SelectionKey.OP_READ);
+        }
+        if (connection.closing) disconnect(connection);
+    }
+
+    private void disconnect(Connection connection) {
+        if (connection == null) return;
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException ignored) {
+            // the connection is gone anyway
+        }
+        for (Long id : connection.sessions) {
+            Session session = sessions.remove(id);
+            if (session != null) session.close();
+        }
+    }
+
+    /**
+     * Executes the request in the selector thread. The searches are submitted to the executor
+     */
+    private void handle(Connection connection, String request) {
+        if (request.isEmpty()) return;
+        String[] args = request.split("\\s+");
+        try {
+            switch (args[0].toUpperCase()) {
+                case "NEW":
+                    newSession(connection, args);
+                    break;
+                case "PLAY":
+                    submit(connection, session(connection, args, 5),
+                            Integer.parseInt(args[2]), Integer.parseInt(args[3]), Long.parseLong(args[4]));
+                    break;
+                case "GO":
+                    submit(connection, session(connection, args, 3), -1, -1, Long.parseLong(args[2]));
+                    break;
+                case "END":
+                    Session session = session(connection, args, 2);
+                    sessions.remove(session.id);
+                    connection.sessions.remove(session.id);
+                    session.close();
+                    connection.send("OK " + session.id);
+                    break;
+                case "STATS":
+                    connection.send(stats());
+                    break;
+                case "QUIT":
+                    disconnect(connection);
+                    break;
+                default:
+                    connection.send("ERROR unknown request " + args[0]);
+            }
+        } catch (NumberFormatException e) {
+            connection.send("ERROR malformed number in " + request);
+        } catch (IllegalArgumentException e) {
+            connection.send("ERROR " + e.getMessage());
+        }
+    }
+
+    private void newSession(Connection connection, String[] args) {
+        if (args.length < 4) throw new IllegalArgumentException("expected NEW width height line [PONDER]");
+        if (sessions.size() >= maxSessions) throw new IllegalArgumentException("too many sessions");
+        Geometry geometry = Geometry.of(Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                Integer.parseInt(args[3]));
+        boolean ponder = args.length > 4 && args[4].equalsIgnoreCase("PONDER");
+        if (args.length > 4 && !ponder) throw new IllegalArgumentException("unknown option " + args[4]);
+        Game game = new Game(geometry);
+        Ponderer ponderer = null;
+        if (ponder) {
+            ponderer = new Ponderer(game, table(geometry), ponderPool);
+            ponderer.setOpeningBook(books.get(geometry));
+        }
+        Session session = new Session(nextId.getAndIncrement(), connection, game, ponderer);
+        sessions.put(session.id, session);
+        connection.sessions.add(session.id);
+        connection.send("OK " + session.id);
+    }
+
+    private Session session(Connection connection, String[] args, int length) {
+        if (args.length < length) throw new IllegalArgumentException("expected " + length + " arguments");
+        Session session = sessions.get(Long.parseLong(args[1]));
+        if (session == null || session.owner != connection)
+            throw new IllegalArgumentException("no session " + args[1]);
+        return session;
+    }
+
+    /**
+     * Submits the search of the session
+     * @param row row of the client's move to make before the search, -1 if there is none
+     * @param column column of the client's move
+     */
+    private void submit(Connection connection, Session session, int row, int column, long deadlineMillis) {
+        if (!session.busy.compareAndSet(false, true))
+            throw new IllegalArgumentException("session " + session.id + " is busy");
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        queued.incrementAndGet();
+        try {
+            executor.execute(() -> {
+                queued.decrementAndGet();
+                running.incrementAndGet();
+                String reply;
+                try {
+                    reply = play(session, row, column, deadline);
+                } catch (RuntimeException e) {
+                    reply = "ERROR " + e;
+                } finally {
+                    running.decrementAndGet();
+                    session.busy.set(false);
+                    latencies.record(System.nanoTime() - start);
+                }
+                // the session is released before the reply, so the client may send the next move at once
+                connection.send(reply);
+            });
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            session.busy.set(false);
+            throw new IllegalArgumentException("server is shutting down");
+        }
+    }
+
+    /**
+     * Makes the client's move and the computer's answer.
+     * A request, which has waited in the queue past its deadline, is rejected without a move
+     * @return the answer line
+     */
+    private String play(Session session, int row, int column, long deadline) {
+        Game game = session.game;
+        long millis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (millis <= 0) return "ERROR deadline exceeded in the queue";
+
+        Ponderer ponderer = session.ponderer;
+        int cell = row * game.getWidth() + column;
+        boolean client = row != -1 || column != -1;
+        if (client) {
+            if (row < 0 || row >= game.getHeight() || column < 0 || column >= game.getWidth()
+                    || !session.move(cell))
+                return "ERROR illegal move " + row + " " + column;
+        }
+        Game.Result result = game.result().getResult();
+        if (result != Game.Result.UNFINISHED) {
+            if (ponderer != null) ponderer.cancel();
+            return "MOVE " + session.id + " -1 -1 " + result;
+        }
+
+        Search.SearchResult answer;
+        if (ponderer == null) {
+            answer = search(game, session.player, millis);
+        } else if (client) {
+            long hits = ponderer.getHits();
+            answer = ponderer.answer(cell, session.player, millis);
+            (ponderer.getHits() > hits ? ponderHits : ponderMisses).incrementAndGet();
+        } else {
+            answer = ponderer.search(session.player, millis);
+        }
+        int move = answer.getMove().lowestSetBit();
+        session.move(move);
+        if (ponderer != null) ponderer.start(session.player);
+        return "MOVE " + session.id + " " + move / game.getWidth() + " " + move % game.getWidth() + " "
+                + game.result().getResult();
+    }
+
+    /**
+     * Searches the position of the game by an idle search of the geometry
+     */
+    private Search.SearchResult search(Game game, Game.Player player, long millis) {
+        ConcurrentLinkedQueue<Searcher> idle = searchers.computeIfAbsent(game.getGeometry(),
+                g -> new ConcurrentLinkedQueue<>());
+        Searcher searcher = idle.poll();
+        if (searcher == null) searcher = new Searcher(game.getGeometry());
+        try {
+            return searcher.search(game, player, millis);
+        } finally {
+            idle.add(searcher);
+        }
+    }
+
+    /**
+     * @return the transposition table shared by the sessions of the geometry
+     */
+    private TranspositionTable table(Geometry geometry) {
+        return tables.computeIfAbsent(geometry, g -> new TranspositionTable(Search.TABLE_MEGABYTES));
+    }
+
+    private String stats() {
+        long[] p = latencies.percentiles(50, 90, 99, 100);
+        return String.format("STATS sessions=%d queued=%d running=%d moves=%d ponderHits=%d ponderMisses=%d"
+                        + " p50=%.1f p90=%.1f p99=%.1f max=%.1f",
+                sessions.size(), queued.get(), running.get(), latencies.getCount(), ponderHits.get(),
+                ponderMisses.get(), p[0] / 1e6, p[1] / 1e6, p[2] / 1e6, p[3] / 1e6);
+    }
+
+    /**
+     * A search with its own game, it searches the positions of the sessions of the geometry
+     */
+    private class Searcher {
+        final Game game;
+        final Search search;
+        final long[] x; // the position copied from the session's game
+        final long[] o;
+
+        Searcher(Geometry geometry) {
+            this.game = new Game(geometry);
+            this.search = new Search(game, table(geometry));
+            search.setOpeningBook(books.get(geometry));
+            this.x = new long[geometry.getWords()];
+            this.o = new long[geometry.getWords()];
+        }
+
+        Search.SearchResult search(Game session, Game.Player player, long millis) {
+            session.getPosition(x, o, 0);
+            game.restorePosition(x, o, 0);
+            return search.search(player, millis);
+        }
+    }
+
+    /**
+     * A client connection: the request being read and the answers to write
+     */
+    class Connection {
+        final SocketChannel channel;
+        final ByteBuffer input = ByteBuffer.allocate(1024);
+        final StringBuilder line = new StringBuilder();
+        final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+        final HashSet<Long> sessions = new HashSet<>(); // touched by the selector thread only
+        SelectionKey key;
+        volatile boolean closing; // close after the answers are written
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Queues the answer, the selector thread writes it
+         */
+        void send(String answer) {
+            synchronized (this) {
+                output.add(ByteBuffer.wrap((answer + "\n").getBytes(StandardCharsets.US_ASCII)));
+            }
+            pendingWrites.add(this);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs the server
+     * Arguments: [port] [maxSessions] [opening book files]
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 7777;
+        int maxSessions = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        GameServer server = new GameServer(port, maxSessions);
+        for (int i = 2; i < args.length; i++) {
+            OpeningBook book = OpeningBook.open(Paths.get(args[i]));
+            server.addOpeningBook(book);
+            Geometry geometry = book.getGeometry();
+            System.out.printf("Opening book %s: %d positions of %dx%d line %d%n", args[i], book.size(),
+                    geometry.getWidth(), geometry.getHeight(), geometry.getLine());
+        }
+        System.out.println("Game server listens on port " + server.getPort());
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,54 @@
+package kuruhuru.tictactoe.server;
+
+import java.util.Arrays;
+
+/**
+ * The class keeps the latencies of the last requests in a ring buffer
+ * and computes their percentiles on demand.
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+public class LatencyStats {
+
+    private final long[] samples; // nanoseconds, the oldest are overwritten
+    private long count;           // total number of recorded samples
+
+    /**
+     * @param capacity number of the last samples the percentiles are computed over
+     */
+    public LatencyStats(int capacity) {
+        this.samples = new long[capacity];
+    }
+
+    public synchronized void record(long nanos) {
+        samples[(int) (count % samples.length)] = nanos;
+        count++;
+    }
+
+    /**
+     * @return total number of recorded samples
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @param percents percentiles to compute, 0..100
+     * @return latencies in nanoseconds of the percentiles over the last samples, zeros if there are none
+     */
+    public long[] percentiles(double... percents) {
+        long[] sorted;
+        synchronized (this) {
+            sorted = Arrays.copyOf(samples, (int) Math.min(count, samples.length));
+        }
+        Arrays.sort(sorted);
+        long[] res = new long[percents.length];
+        if (sorted.length == 0) return res;
+        for (int i = 0; i < percents.length; i++) {
+            int index = (int) Math.ceil(percents[i] / 100 * sorted.length) - 1;
+            res[i] = sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+        return res;
+    }
+}
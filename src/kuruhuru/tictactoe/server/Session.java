@@ -0,0 +1,49 @@
+package kuruhuru.tictactoe.server;
+
+import kuruhuru.tictactoe.ai.Game;
+import kuruhuru.tictactoe.ai.Ponderer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A match hosted by the server: the game, the side to move and the connection owning it.
+ * At most one request of a session is processed at a time, the busy flag is taken
+ * by the request and released when its answer is sent.
+ * A session may ponder: search on the client's time in its own thread.
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+class Session {
+
+    final long id;
+    final GameServer.Connection owner; // the connection, which created the session
+    final Game game;
+    final AtomicBoolean busy = new AtomicBoolean();
+    final Ponderer ponderer; // null if the session does not ponder
+    Game.Player player = Game.Player.X; // side to move
+
+    Session(long id, GameServer.Connection owner, Game game, Ponderer ponderer) {
+        this.id = id;
+        this.owner = owner;
+        this.game = game;
+        this.ponderer = ponderer;
+    }
+
+    /**
+     * Makes the move of the side to move
+     * @return false if the move is illegal
+     */
+    boolean move(int cell) {
+        if (game.result().getResult() != Game.Result.UNFINISHED || !game.makeMove(cell, player)) return false;
+        player = player.next();
+        return true;
+    }
+
+    /**
+     * Stops the pondering, the session is removed
+     */
+    void close() {
+        if (ponderer != null) ponderer.shutdown();
+    }
+}
@@ -0,0 +1,249 @@
+package kuruhuru.tictactoe.ai;
+
+import kuruhuru.tictactoe.bignum.Bitboard;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Field;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Randomized tests of the state kept by makeMove and undoMove: the stones of every winning,
+ * the pattern counts and evaluation, the result and the tracked threats. After every move and undo
+ * of random games it is compared with a rescan of the board.
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+class GameTest {
+
+    private static final int[][] BOARDS = {{3, 3, 3}, {4, 4, 2}, {5, 5, 4}, {7, 7, 4}, {10, 8, 5}, {15, 15, 5},
+            {19, 19, 5}, {64, 64, 5}}; // width, height, line
+
+    private final Random random = new Random(3);
+
+    @Test
+    void makeAndUndoKeepTheBoardState() {
+        for (int[] board : BOARDS) {
+            Game game = new Game(board[0], board[1], board[2]);
+            // the games on the large boards are cut, the rescan costs all winnings
+            int games = game.getCells() > 1000 ? 2 : 20;
+            int plies = Math.min(game.getCells(), game.getCells() > 1000 ? 40 : 150);
+            for (int g = 0; g < games; g++) {
+                int[] moves = new int[plies];
+                int count = 0;
+                Game.Player player = Game.Player.X;
+                // moves and undos of random games, more moves than undos
+                while (count < moves.length) {
+                    if (count > 0 && random.nextInt(4) == 0) {
+                        player = player.next();
+                        game.undoMove(moves[--count], player);
+                    } else {
+                        if (game.status() != Game.Result.UNFINISHED) break;
+                        int[] empty = new int[game.getCells()];
+                        int n = game.findPossibleMoves(empty);
+                        moves[count] = empty[random.nextInt(n)];
+                        assertTrue(game.makeMove(moves[count++], player));
+                        player = player.next();
+                    }
+                    assertConsistent(game);
+                }
+                while (count > 0) {
+                    player = player.next();
+                    game.undoMove(moves[--count], player);
+                    assertConsistent(game);
+                }
+                assertEquals(0, game.getHash());
+            }
+        }
+    }
+
+    @Test
+    void winningsOfCellMatchTheirCells() {
+        for (int[] board : BOARDS) {
+            Geometry geometry = Geometry.of(board[0], board[1], board[2]);
+            int[] through = new int[geometry.cells];
+            for (int[] cells : geometry.winCells)
+                for (int cell : cells) through[cell]++;
+            for (int cell = 0; cell < geometry.cells; cell++) {
+                assertEquals(through[cell], geometry.cellWins[cell].length);
+                for (int w : geometry.cellWins[cell]) {
+                    boolean found = false;
+                    for (int c : geometry.winCells[w]) found |= c == cell;
+                    assertTrue(found, "winning " + w + " of cell " + cell);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compares the state kept by makeMove and undoMove with a rescan of the board
+     */
+    static void assertConsistent(Game game) {
+        Geometry geometry = game.getGeometry();
+        int line = geometry.line;
+        int[][] winCells = geometry.winCells;
+        byte[] winsX = new byte[winCells.length];
+        byte[] winsO = new byte[winCells.length];
+        int[] patternsX = new int[line + 1];
+        int[] patternsO = new int[line + 1];
+        int tracked = Math.max(line - 2, 1);
+        Bitboard[] threatLines = {new Bitboard(3 * winCells.length), new Bitboard(3 * winCells.length)};
+        for (int w = 0; w < winCells.length; w++) {
+            for (int cell : winCells[w]) {
+                Game.Field field = field(game, cell);
+                if (field == Game.Field.X) winsX[w]++;
+                else if (field == Game.Field.O) winsO[w]++;
+            }
+            if (winsO[w] == 0) {
+                patternsX[winsX[w]]++;
+                if (winsX[w] >= tracked) threatLines[0].setBit((line - winsX[w]) * winCells.length + w);
+            }
+            if (winsX[w] == 0) {
+                patternsO[winsO[w]]++;
+                if (winsO[w] >= tracked) threatLines[1].setBit((line - winsO[w]) * winCells.length + w);
+            }
+        }
+        assertArrayEquals(winsX, (byte[]) get(game, "winsX"));
+        assertArrayEquals(winsO, (byte[]) get(game, "winsO"));
+        assertArrayEquals(threatLines, (Bitboard[]) get(game, "threatLines"));
+        for (int k = 0; k <= line; k++) {
+            assertEquals(patternsX[k], game.patterns(Game.Player.X, k), "patterns of X by " + k);
+            assertEquals(patternsO[k], game.patterns(Game.Player.O, k), "patterns of O by " + k);
+        }
+        int score = 0;
+        for (int k = 1; k < line; k++) score += geometry.weights[k] * (patternsX[k] - patternsO[k]);
+        assertEquals(score, game.evaluate(Game.Player.X));
+        assertEquals(-score, game.evaluate(Game.Player.O));
+
+        long hash = 0;
+        int moves = 0;
+        for (int cell = 0; cell < geometry.cells; cell++) {
+            Game.Field field = field(game, cell);
+            if (field != Game.Field.EMPTY) {
+                hash ^= Game.zobrist(field == Game.Field.X ? Game.Player.X : Game.Player.O, cell);
+                moves++;
+            }
+        }
+        assertEquals(hash, game.getHash());
+        assertEquals(moves, game.getMoves());
+
+        assertResult(game);
+        for (Game.Player player : Game.Player.values()) {
+            for (int needed = 1; needed <= line; needed++)
+                assertEquals(threats(game, player, needed), game.threats(player, needed, new Bitboard(geometry.cells)),
+                        player + " needs " + needed);
+            if (game.status() == Game.Result.UNFINISHED && line > 2) {
+                SortedMoves sorted = game.sortPossibleMoves(player);
+                Bitboard wining = threats(game, player, 1);
+                assertEquals(wining, sorted.wining);
+                if (wining.isZero()) {
+                    Bitboard checks = threats(game, player, 2);
+                    assertEquals(checks, sorted.checks);
+                    assertEquals(forks(game, player), sorted.fork);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compares the result with the lines of the stones found on the board along the rows, columns and diagonals
+     */
+    private static void assertResult(Game game) {
+        Geometry geometry = game.getGeometry();
+        Game.Field winner = Game.Field.EMPTY;
+        int[][] directions = {{0, 1}, {1, 0}, {1, 1}, {1, -1}};
+        for (int i = 0; i < geometry.height; i++) {
+            for (int j = 0; j < geometry.width; j++) {
+                Game.Field field = game.getField(i, j);
+                if (field == Game.Field.EMPTY) continue;
+                for (int[] d : directions) {
+                    int k = 1;
+                    while (k < geometry.line) {
+                        int ni = i + k * d[0];
+                        int nj = j + k * d[1];
+                        if (ni >= geometry.height || nj < 0 || nj >= geometry.width || game.getField(ni, nj) != field)
+                            break;
+                        k++;
+                    }
+                    if (k == geometry.line) winner = field;
+                }
+            }
+        }
+        Game.Result expected = winner == Game.Field.X ? Game.Result.X : winner == Game.Field.O ? Game.Result.O
+                : game.getMoves() == geometry.cells ? Game.Result.DRAW : Game.Result.UNFINISHED;
+        Game.GameResult res = game.result();
+        assertEquals(expected, res.getResult());
+        assertEquals(expected, game.status());
+        if (winner != Game.Field.EMPTY) {
+            assertEquals(geometry.line, res.win.bitCount());
+            for (int cell = res.win.nextSetBit(0); cell >= 0; cell = res.win.nextSetBit(cell + 1))
+                assertEquals(winner, field(game, cell));
+        }
+    }
+
+    /**
+     * @return the empty cells of the winnings, where the player needs the moves and the opponent has no stones
+     */
+    private static Bitboard threats(Game game, Game.Player player, int needed) {
+        Geometry geometry = game.getGeometry();
+        Game.Field own = player == Game.Player.X ? Game.Field.X : Game.Field.O;
+        Bitboard res = new Bitboard(geometry.cells);
+        for (int[] cells : geometry.winCells) {
+            int stones = 0;
+            boolean blocked = false;
+            for (int cell : cells) {
+                Game.Field field = field(game, cell);
+                if (field == own) stones++;
+                else if (field != Game.Field.EMPTY) blocked = true;
+            }
+            if (!blocked && stones == geometry.line - needed)
+                for (int cell : cells)
+                    if (field(game, cell) == Game.Field.EMPTY) res.setBit(cell);
+        }
+        return res;
+    }
+
+    /**
+     * @return the empty cells lying in two winnings, where the player needs two moves
+     */
+    private static Bitboard forks(Game game, Game.Player player) {
+        Geometry geometry = game.getGeometry();
+        Game.Field own = player == Game.Player.X ? Game.Field.X : Game.Field.O;
+        int[] checks = new int[geometry.cells];
+        Bitboard res = new Bitboard(geometry.cells);
+        for (int[] cells : geometry.winCells) {
+            int stones = 0;
+            boolean blocked = false;
+            for (int cell : cells) {
+                Game.Field field = field(game, cell);
+                if (field == own) stones++;
+                else if (field != Game.Field.EMPTY) blocked = true;
+            }
+            if (!blocked && stones == geometry.line - 2)
+                for (int cell : cells)
+                    if (field(game, cell) == Game.Field.EMPTY && ++checks[cell] == 2) res.setBit(cell);
+        }
+        return res;
+    }
+
+    private static Game.Field field(Game game, int cell) {
+        return game.getField(cell / game.getWidth(), cell % game.getWidth());
+    }
+
+    /**
+     * @return the private field of the game
+     */
+    static Object get(Game game, String name) {
+        try {
+            Field field = Game.class.getDeclaredField(name);
+            field.setAccessible(true);
+            return field.get(game);
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package kuruhuru.tictactoe.ai;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the opening book: a book built for a small board answers every position
+ * the builder enumerates, and the scores keep the distance of the wins
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+class OpeningBookTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void bookAnswersEveryEnumeratedPosition() throws IOException {
+        Geometry geometry = Geometry.of(3, 3, 3);
+        Path path = dir.resolve("3x3.book");
+        int written = new OpeningBookBuilder(geometry, 20, 100_000).build(geometry.cells, path);
+
+        try (OpeningBook book = OpeningBook.open(path)) {
+            assertEquals(written, book.size());
+            int[] counts = new int[2]; // the unfinished positions enumerated and the ones answered
+            check(book, new Game(geometry), Game.Player.X, geometry.cells, counts);
+            assertTrue(counts[0] > 38, "positions " + counts[0]);
+            assertEquals(counts[0], counts[1]);
+        }
+    }
+
+    /**
+     * Walks the positions the builder enumerates, the moves next to the stones, and probes the unfinished ones
+     */
+    private static void check(OpeningBook book, Game game, Game.Player player, int plies, int[] counts) {
+        if (game.status() != Game.Result.UNFINISHED) return;
+        counts[0]++;
+        int move = book.probe(game, player);
+        if (move >= 0 && game.getField(move / game.getWidth(), move % game.getWidth()) == Game.Field.EMPTY)
+            counts[1]++;
+        if (game.getMoves() + 1 >= plies) return;
+        int[] candidates = new int[game.getCells()];
+        int n = game.findCandidateMoves(OpeningBookBuilder.DISTANCE, candidates);
+        for (int i = 0; i < n; i++) {
+            game.makeMove(candidates[i], player);
+            check(book, game, player.next(), plies, counts);
+            game.undoMove(candidates[i], player);
+        }
+    }
+
+    @Test
+    void scoresKeepTheWinDistance() throws IOException {
+        Geometry geometry = Geometry.of(3, 3, 3);
+        Game game = new Game(geometry);
+        game.makeMove(4, Game.Player.X);
+        int symmetry = OpeningBook.canonicalSymmetry(game, Game.Player.O);
+        long[] keys = {OpeningBook.key(game, Game.Player.O, symmetry)};
+        short[] moves = {(short) geometry.symmetries[symmetry][0]};
+        int[] scores = {-(Search.WIN - 7)};
+        Path path = dir.resolve("win.book");
+        OpeningBook.write(path, geometry, keys, moves, scores, 1);
+
+        try (OpeningBook book = OpeningBook.open(path)) {
+            assertEquals(0, book.probe(game, Game.Player.O));
+            assertEquals(-(Search.WIN - 7), book.score(game, Game.Player.O));
+        }
+    }
+}
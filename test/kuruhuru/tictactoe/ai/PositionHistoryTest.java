@@ -0,0 +1,105 @@
+package kuruhuru.tictactoe.ai;
+
+import kuruhuru.tictactoe.bignum.Bitboard;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests, that restoring the snapshots and undo and redo of the history set the same position
+ * as playing its moves: the stones, hash, counters of the winnings and threat sets
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+class PositionHistoryTest {
+
+    private final Random random = new Random(5);
+
+    @Test
+    void restoredSnapshotsMatchThePlayedPositions() {
+        // on 15x15 a jump of more than 28 stones is set by setPosition, a shorter one by the moves
+        for (int[] board : new int[][]{{7, 7, 4}, {15, 15, 5}}) {
+            Game game = new Game(board[0], board[1], board[2]);
+            List<Position> snapshots = new ArrayList<>();
+            List<Game> played = new ArrayList<>();
+            Game.Player player = Game.Player.X;
+            int[] moves = new int[game.getCells()];
+            snapshots.add(Position.of(game, player));
+            played.add(new Game(game));
+            while (game.status() == Game.Result.UNFINISHED && game.getMoves() < 80) {
+                game.makeMove(moves[random.nextInt(game.findPossibleMoves(moves))], player);
+                player = player.next();
+                snapshots.add(Position.of(game, player));
+                played.add(new Game(game));
+            }
+            for (int i = 0; i < 300; i++) {
+                int index = random.nextInt(snapshots.size());
+                Position snapshot = snapshots.get(index);
+                assertEquals(snapshot.getPlayer(), snapshot.restore(game));
+                assertEquals(snapshot, Position.of(game, snapshot.getPlayer()));
+                assertSameState(played.get(index), game);
+                GameTest.assertConsistent(game);
+            }
+        }
+    }
+
+    @Test
+    void undoAndRedoMatchThePlayedMoves() {
+        Game game = new Game(15, 15, 5);
+        PositionHistory history = new PositionHistory(game, Game.Player.X);
+        List<Integer> moves = new ArrayList<>(); // the moves up to the current position
+        List<Integer> undone = new ArrayList<>(); // the moves to redo, the next one last
+        int[] empty = new int[game.getCells()];
+        for (int step = 0; step < 2000; step++) {
+            int action = random.nextInt(4);
+            if (action == 0) {
+                assertEquals(!moves.isEmpty(), history.undo());
+                if (!moves.isEmpty()) undone.add(moves.remove(moves.size() - 1));
+            } else if (action == 1) {
+                assertEquals(!undone.isEmpty(), history.redo());
+                if (!undone.isEmpty()) moves.add(undone.remove(undone.size() - 1));
+            } else if (game.status() == Game.Result.UNFINISHED) {
+                int cell = empty[random.nextInt(game.findPossibleMoves(empty))];
+                assertTrue(history.play(cell));
+                moves.add(cell);
+                undone.clear();
+                assertFalse(history.redo());
+            }
+
+            Game expected = new Game(game.getGeometry());
+            Game.Player player = Game.Player.X;
+            for (int move : moves) {
+                expected.makeMove(move, player);
+                player = player.next();
+            }
+            assertEquals(player, history.getPlayer());
+            assertEquals(moves.isEmpty() ? -1 : moves.get(moves.size() - 1), history.getLastMove());
+            assertEquals(Position.of(expected, player), history.getPosition());
+            assertSameState(expected, game);
+        }
+        GameTest.assertConsistent(game);
+    }
+
+    /**
+     * Compares the stones, hash and the state kept by makeMove and undoMove
+     */
+    private static void assertSameState(Game expected, Game actual) {
+        assertEquals(Position.of(expected, Game.Player.X), Position.of(actual, Game.Player.X));
+        assertEquals(expected.getHash(), actual.getHash());
+        assertEquals(expected.getMoves(), actual.getMoves());
+        for (String counters : new String[]{"winsX", "winsO"})
+            assertArrayEquals((byte[]) GameTest.get(expected, counters), (byte[]) GameTest.get(actual, counters));
+        for (String counters : new String[]{"patternsX", "patternsO"})
+            assertArrayEquals((int[]) GameTest.get(expected, counters), (int[]) GameTest.get(actual, counters));
+        assertArrayEquals((Bitboard[]) GameTest.get(expected, "threatLines"),
+                (Bitboard[]) GameTest.get(actual, "threatLines"));
+    }
+}
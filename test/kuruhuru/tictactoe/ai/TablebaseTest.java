@@ -0,0 +1,54 @@
+package kuruhuru.tictactoe.ai;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the searches answered by the tablebase, including the positions it can not reach
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+class TablebaseTest {
+
+    private static final Tablebase TABLEBASE = Tablebase.solve(Geometry.of(3, 3, 3));
+
+    @Test
+    void reachablePositionIsAnsweredByTable() {
+        Game game = new Game(3, 3, 3);
+        game.makeMove(4, Game.Player.X);
+        game.makeMove(1, Game.Player.O);
+        Search search = new Search(game);
+        search.setTablebase(TABLEBASE);
+        Search.SearchResult res = search.search(Game.Player.X, 1000);
+        assertEquals(TABLEBASE.bestMove(game), res.getMove().lowestSetBit());
+        assertEquals(Search.WIN - 7, res.getScore());
+    }
+
+    @Test
+    void unreachablePositionIsSearched() {
+        // two zeros and the crosses to move can not arise in a game, the table has no value of it
+        Game game = new Game(3, 3, 3);
+        game.makeMove(0, Game.Player.O);
+        game.makeMove(8, Game.Player.O);
+        assertEquals(Tablebase.UNKNOWN, TABLEBASE.value(game));
+
+        Search search = new Search(game);
+        search.setTablebase(TABLEBASE);
+        Search.SearchResult res = search.search(Game.Player.X, 1000);
+        assertNotNull(res.getMove());
+        assertTrue(game.getField(res.getMove().lowestSetBit() / 3, res.getMove().lowestSetBit() % 3)
+                == Game.Field.EMPTY);
+
+        ParallelSearch parallel = new ParallelSearch(game, 2);
+        parallel.setTablebase(TABLEBASE);
+        try {
+            assertNotNull(parallel.search(Game.Player.X, 1000).getMove());
+        } finally {
+            parallel.shutdown();
+        }
+    }
+}
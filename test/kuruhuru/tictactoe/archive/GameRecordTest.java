@@ -0,0 +1,203 @@
+package kuruhuru.tictactoe.archive;
+
+import kuruhuru.tictactoe.ai.Game;
+import kuruhuru.tictactoe.ai.Geometry;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Round trips of random game records through the buffer, the DataOutput and DataInput streams
+ * and the record files, on boards with the moves of a byte and of a short, and the rejection
+ * of the corrupt records
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+class GameRecordTest {
+
+    private static final int[][] BOARDS = {{3, 3, 3}, {15, 15, 5}, {16, 16, 5}, {17, 17, 5}, {64, 64, 5}};
+
+    private final Random random = new Random(4);
+
+    @Test
+    void moveBytesFollowTheCells() {
+        assertEquals(1, GameRecord.moveBytes(Geometry.of(16, 16, 5)));
+        assertEquals(2, GameRecord.moveBytes(Geometry.of(17, 16, 5)));
+    }
+
+    @Test
+    void bufferRoundTrip() throws IOException {
+        for (GameRecord record : randomRecords()) {
+            ByteBuffer buffer = ByteBuffer.allocate(record.encodedBytes());
+            record.writeTo(buffer);
+            assertFalse(buffer.hasRemaining());
+            buffer.flip();
+            assertEquals(record.encodedBytes(), GameRecord.encodedBytes(buffer));
+            GameRecord copy = new GameRecord();
+            copy.readFrom(buffer);
+            assertFalse(buffer.hasRemaining());
+            assertSame(record, copy);
+        }
+    }
+
+    @Test
+    void streamRoundTrip() throws IOException {
+        // the records are read into one record, the short ones first, so its scratch buffer grows
+        List<GameRecord> records = randomRecords();
+        records.sort((a, b) -> Integer.compare(a.encodedBytes(), b.encodedBytes()));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            for (GameRecord record : records) record.writeTo(out);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        GameRecord copy = new GameRecord();
+        for (GameRecord record : records) {
+            copy.readFrom(in);
+            assertSame(record, copy);
+        }
+        assertEquals(-1, in.read());
+
+        // the stream has the same encoding as the buffer
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.size());
+        for (GameRecord record : records) record.writeTo(buffer);
+        assertArrayEquals(buffer.array(), bytes.toByteArray());
+    }
+
+    @Test
+    void fileRoundTrip() throws IOException {
+        List<GameRecord> records = randomRecords();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GameRecordWriter writer = new GameRecordWriter(bytes)) {
+            for (GameRecord record : records) writer.write(record);
+            assertEquals(records.size(), writer.getRecords());
+        }
+        try (GameRecordReader reader = new GameRecordReader(new ByteArrayInputStream(bytes.toByteArray()))) {
+            GameRecord copy = new GameRecord();
+            for (GameRecord record : records) {
+                assertTrue(reader.next(copy));
+                assertSame(record, copy);
+                Game game = new Game(copy.getGeometry());
+                assertTrue(copy.replay(game));
+                assertEquals(copy.getMoveCount(), game.getMoves());
+            }
+            assertFalse(reader.next(copy));
+            assertEquals(records.size(), reader.getRecords());
+        }
+    }
+
+    @Test
+    void optionalDataIsDecodedByFlags() throws IOException {
+        // a record of two moves with the evaluations only
+        ByteBuffer buffer = ByteBuffer.allocate(GameRecord.HEADER_BYTES + 2 + 4);
+        buffer.put((byte) 3).put((byte) 3).put((byte) 3).put((byte) GameRecord.EVALS)
+                .put((byte) Game.Result.UNFINISHED.ordinal()).putShort((short) 2)
+                .put((byte) 4).put((byte) 0).putShort((short) 15).putShort((short) -7);
+        buffer.flip();
+        GameRecord record = new GameRecord();
+        record.readFrom(buffer);
+        assertEquals(GameRecord.EVALS, record.getFlags());
+        assertEquals(2, record.getMoveCount());
+        assertEquals(4, record.getMove(0));
+        assertEquals(-7, record.getEval(1));
+        assertEquals(0, record.getTime(1));
+        assertEquals(buffer.capacity(), record.encodedBytes());
+    }
+
+    @Test
+    void corruptRecordsAreRejected() throws IOException {
+        GameRecord record = new GameRecord(Geometry.of(3, 3, 3));
+        record.addMove(4);
+        record.addMove(0);
+        byte[] valid = new byte[record.encodedBytes()];
+        record.writeTo(ByteBuffer.wrap(valid));
+
+        byte[] result = valid.clone();
+        result[4] = 9;
+        assertCorrupt(result, "result 9");
+
+        byte[] count = valid.clone();
+        count[6] = 10;
+        assertCorrupt(count, "10 moves");
+
+        byte[] move = valid.clone();
+        move[GameRecord.HEADER_BYTES + 1] = 9;
+        assertCorrupt(move, "move 9");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GameRecordWriter writer = new GameRecordWriter(bytes)) {
+            writer.write(record);
+        }
+        byte[] file = bytes.toByteArray();
+        try (GameRecordReader reader = new GameRecordReader(
+                new ByteArrayInputStream(Arrays.copyOf(file, file.length - 1)))) {
+            assertThrows(EOFException.class, () -> reader.next(new GameRecord()));
+        }
+        file[0] = 0;
+        assertThrows(IOException.class, () -> new GameRecordReader(new ByteArrayInputStream(file)));
+    }
+
+    private static void assertCorrupt(byte[] bytes, String message) {
+        IOException e = assertThrows(IOException.class, () -> new GameRecord().readFrom(ByteBuffer.wrap(bytes)));
+        assertEquals("Corrupt game record: " + message, e.getMessage());
+        e = assertThrows(IOException.class,
+                () -> new GameRecord().readFrom(new DataInputStream(new ByteArrayInputStream(bytes))));
+        assertEquals("Corrupt game record: " + message, e.getMessage());
+    }
+
+    /**
+     * @return records of random games on every board, with and without the evaluations and times
+     */
+    private List<GameRecord> randomRecords() {
+        List<GameRecord> res = new ArrayList<>();
+        for (int[] board : BOARDS) {
+            for (int i = 0; i < 20; i++) {
+                Geometry geometry = Geometry.of(board[0], board[1], board[2]);
+                GameRecord record = new GameRecord(geometry);
+                boolean timed = i % 2 == 0;
+                Game game = new Game(geometry);
+                int[] moves = new int[geometry.getCells()];
+                Game.Player player = Game.Player.X;
+                int length = random.nextInt(Math.min(geometry.getCells(), 600) + 1);
+                for (int ply = 0; ply < length && game.result().getResult() == Game.Result.UNFINISHED; ply++) {
+                    int cell = moves[random.nextInt(game.findPossibleMoves(moves))];
+                    game.makeMove(cell, player);
+                    player = player.next();
+                    if (timed) record.addMove(cell, random.nextInt(80_000) - 40_000, random.nextInt(10_000));
+                    else record.addMove(cell);
+                }
+                record.setResult(game.result().getResult());
+                res.add(record);
+            }
+        }
+        return res;
+    }
+
+    private static void assertSame(GameRecord expected, GameRecord actual) {
+        assertEquals(expected.getGeometry(), actual.getGeometry());
+        assertEquals(expected.getResult(), actual.getResult());
+        assertEquals(expected.getFlags(), actual.getFlags());
+        assertEquals(expected.getMoveCount(), actual.getMoveCount());
+        for (int i = 0; i < expected.getMoveCount(); i++) {
+            assertEquals(expected.getMove(i), actual.getMove(i));
+            assertEquals(expected.getEval(i), actual.getEval(i));
+            assertEquals(expected.getTime(i), actual.getTime(i));
+        }
+    }
+}
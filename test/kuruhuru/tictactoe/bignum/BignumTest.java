@@ -0,0 +1,122 @@
+package kuruhuru.tictactoe.bignum;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Randomized tests of Bignum against BigInteger and BitSet. The random words are mixed
+ * with zero, full and sparse words, so that the carries across the word boundaries
+ * and the skipped empty words are exercised.
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+class BignumTest {
+
+    private static final int RUNS = 2000;
+
+    private final Random random = new Random(1);
+
+    @Test
+    void shiftMatchesBigInteger() {
+        for (int run = 0; run < RUNS; run++) {
+            long[] words = randomWords(1 + random.nextInt(6));
+            int bits = 64 * words.length;
+            BigInteger mask = BigInteger.ONE.shiftLeft(bits).subtract(BigInteger.ONE);
+            for (int shift = -bits - 65; shift <= bits + 65; shift++) {
+                int n = shift;
+                Bignum res = new Bignum(words.clone()).bitwiseShift(n);
+                BigInteger expected = toBigInteger(words).shiftLeft(n).and(mask);
+                assertEquals(expected, toBigInteger(res.num), () -> "shift " + new Bignum(words) + " by " + n);
+            }
+        }
+    }
+
+    @Test
+    void bitwiseMatchesBitSet() {
+        for (int run = 0; run < RUNS; run++) {
+            int size = 1 + random.nextInt(6);
+            long[] a = randomWords(size);
+            long[] b = randomWords(size);
+
+            BitSet and = BitSet.valueOf(a);
+            and.and(BitSet.valueOf(b));
+            assertEquals(and, BitSet.valueOf(new Bignum(a.clone()).bitwiseAND(new Bignum(b)).num));
+
+            BitSet or = BitSet.valueOf(a);
+            or.or(BitSet.valueOf(b));
+            assertEquals(or, BitSet.valueOf(new Bignum(a.clone()).bitwiseOR(new Bignum(b)).num));
+
+            BitSet xor = BitSet.valueOf(a);
+            xor.xor(BitSet.valueOf(b));
+            assertEquals(xor, BitSet.valueOf(new Bignum(a.clone()).bitwiseXOR(new Bignum(b)).num));
+        }
+    }
+
+    @Test
+    void bitCountMatchesBitSet() {
+        for (int run = 0; run < RUNS; run++) {
+            long[] words = randomWords(1 + random.nextInt(6));
+            assertEquals(BitSet.valueOf(words).cardinality(), new Bignum(words).bitCount());
+        }
+    }
+
+    @Test
+    void nextSetBitMatchesBitSet() {
+        for (int run = 0; run < RUNS; run++) {
+            long[] words = randomWords(1 + random.nextInt(6));
+            Bignum bignum = new Bignum(words);
+            BitSet bits = BitSet.valueOf(words);
+            for (int from = 0; from <= 64 * words.length + 1; from++)
+                assertEquals(bits.nextSetBit(from), bignum.nextSetBit(from), "from " + from);
+            assertEquals(bits.nextSetBit(0), bignum.lowestSetBit());
+        }
+    }
+
+    @Test
+    void compareMatchesBigInteger() {
+        for (int run = 0; run < RUNS; run++) {
+            int size = 1 + random.nextInt(6);
+            long[] a = randomWords(size);
+            // equal numbers and the numbers differing in one word are frequent, so the lower words decide
+            long[] b = random.nextInt(3) == 0 ? randomWords(size) : a.clone();
+            if (random.nextBoolean()) b[random.nextInt(size)] = randomWords(1)[0];
+            int expected = toBigInteger(a).compareTo(toBigInteger(b));
+            Bignum.Compare compare = new Bignum(a).compare(new Bignum(b));
+            assertEquals(expected < 0 ? Bignum.Compare.LESS : expected > 0 ? Bignum.Compare.GREATER
+                    : Bignum.Compare.EQUAL, compare, () -> new Bignum(a) + " and " + new Bignum(b));
+        }
+    }
+
+    /**
+     * @return words, which are zero, full, sparse or random
+     */
+    private long[] randomWords(int size) {
+        long[] words = new long[size];
+        for (int i = 0; i < size; i++) {
+            switch (random.nextInt(5)) {
+                case 0: words[i] = 0; break;
+                case 1: words[i] = -1L; break;
+                case 2: words[i] = 1L << random.nextInt(64); break;
+                case 3: words[i] = random.nextLong() & random.nextLong() & random.nextLong(); break;
+                default: words[i] = random.nextLong();
+            }
+        }
+        return words;
+    }
+
+    /**
+     * @return the unsigned number of the words, the lowest word first
+     */
+    static BigInteger toBigInteger(long[] words) {
+        BigInteger res = BigInteger.ZERO;
+        for (int i = words.length - 1; i >= 0; i--)
+            res = res.shiftLeft(64).or(new BigInteger(Long.toUnsignedString(words[i])));
+        return res;
+    }
+}
@@ -0,0 +1,113 @@
+package kuruhuru.tictactoe.bignum;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Randomized tests of Bitboard against BigInteger and BitSet, including the shifts in place
+ * (the result is the argument), which the candidate dilation of the game uses.
+ *
+ * @author Petr Matyukov
+ * @version %I%, %G%
+ */
+class BitboardTest {
+
+    private static final int RUNS = 2000;
+
+    private final Random random = new Random(2);
+
+    @Test
+    void shiftsMatchBigInteger() {
+        for (int run = 0; run < RUNS; run++) {
+            Bitboard a = randomBitboard(1 + random.nextInt(400));
+            int bits = a.capacity();
+            BigInteger value = BignumTest.toBigInteger(a.words);
+            BigInteger mask = BigInteger.ONE.shiftLeft(bits).subtract(BigInteger.ONE);
+            for (int shift = 0; shift <= bits + 65; shift++) {
+                int n = shift;
+                Bitboard res = new Bitboard(bits);
+                assertEquals(value.shiftLeft(n).and(mask), BignumTest.toBigInteger(res.shiftLeft(a, n).words),
+                        () -> "left " + a + " by " + n);
+                assertEquals(value.shiftRight(n), BignumTest.toBigInteger(res.shiftRight(a, n).words),
+                        () -> "right " + a + " by " + n);
+                Bitboard same = new Bitboard(a);
+                assertEquals(value.shiftLeft(n).and(mask), BignumTest.toBigInteger(same.shiftLeft(same, n).words),
+                        () -> "left in place " + a + " by " + n);
+                same.copy(a);
+                assertEquals(value.shiftRight(n), BignumTest.toBigInteger(same.shiftRight(same, n).words),
+                        () -> "right in place " + a + " by " + n);
+            }
+        }
+    }
+
+    @Test
+    void bitwiseMatchesBitSet() {
+        for (int run = 0; run < RUNS; run++) {
+            int bits = 1 + random.nextInt(400);
+            Bitboard a = randomBitboard(bits);
+            Bitboard b = randomBitboard(bits);
+            BitSet setA = BitSet.valueOf(a.words);
+            BitSet setB = BitSet.valueOf(b.words);
+            Bitboard res = new Bitboard(bits);
+
+            BitSet expected = (BitSet) setA.clone();
+            expected.and(setB);
+            assertEquals(expected, BitSet.valueOf(res.and(a, b).words));
+            assertEquals(expected.cardinality(), Bitboard.bitCountAnd(a, b));
+            assertEquals(!expected.isEmpty(), a.intersects(b));
+            assertEquals(expected.equals(setB), a.containsAll(b));
+
+            expected = (BitSet) setA.clone();
+            expected.andNot(setB);
+            assertEquals(expected, BitSet.valueOf(res.andNot(a, b).words));
+
+            expected = (BitSet) setA.clone();
+            expected.or(setB);
+            assertEquals(expected, BitSet.valueOf(res.or(a, b).words));
+
+            expected = (BitSet) setA.clone();
+            expected.xor(setB);
+            assertEquals(expected, BitSet.valueOf(res.xor(a, b).words));
+        }
+    }
+
+    @Test
+    void bitsMatchBitSet() {
+        for (int run = 0; run < RUNS; run++) {
+            Bitboard a = randomBitboard(1 + random.nextInt(400));
+            BitSet bits = BitSet.valueOf(a.words);
+            assertEquals(bits.cardinality(), a.bitCount());
+            assertEquals(bits.nextSetBit(0), a.lowestSetBit());
+            for (int from = 0; from <= a.capacity() + 1; from++)
+                assertEquals(bits.nextSetBit(from), a.nextSetBit(from), "from " + from);
+
+            int[] indexes = new int[a.capacity()];
+            int count = a.toIndexes(indexes);
+            assertEquals(bits.cardinality(), count);
+            for (int i = 0, bit = bits.nextSetBit(0); i < count; i++, bit = bits.nextSetBit(bit + 1))
+                assertEquals(bit, indexes[i]);
+        }
+    }
+
+    /**
+     * @return a bitboard of words, which are zero, full, sparse or random
+     */
+    private Bitboard randomBitboard(int bits) {
+        Bitboard res = new Bitboard(bits);
+        for (int i = 0; i < res.words.length; i++) {
+            switch (random.nextInt(5)) {
+                case 0: res.words[i] = 0; break;
+                case 1: res.words[i] = -1L; break;
+                case 2: res.words[i] = 1L << random.nextInt(64); break;
+                case 3: res.words[i] = random.nextLong() & random.nextLong() & random.nextLong(); break;
+                default: res.words[i] = random.nextLong();
+            }
+        }
+        return res;
+    }
+}